@@ -0,0 +1,143 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Benchmarks;
+
+import DataStructures.TimeSeriesClassificationData;
+import Util.MatrixDouble;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Generates the synthetic data used by the benchmarks. Everything is driven by
+ * a seeded Random, so every run of a benchmark sees the same data.
+ *
+ * @author Пользователь
+ */
+public class SyntheticData {
+
+    public static final long SEED = 42;
+
+    /**
+     * Creates a random sequence of quantized symbols.
+     */
+    public static int[] randomSequence(Random random, int length, int numSymbols) {
+        int[] sequence = new int[length];
+        for (int t = 0; t < length; t++) {
+            sequence[t] = random.nextInt(numSymbols);
+        }
+        return sequence;
+    }
+
+    public static int[][] randomSequences(Random random, int numSequences, int length, int numSymbols) {
+        int[][] sequences = new int[numSequences][];
+        for (int i = 0; i < numSequences; i++) {
+            sequences[i] = randomSequence(random, length, numSymbols);
+        }
+        return sequences;
+    }
+
+    /**
+     * Creates a matrix of continuous values drawn around a few random centres,
+     * so clustering it gives a realistic number of changes per epoch.
+     */
+    public static MatrixDouble randomMatrix(Random random, int rows, int cols) {
+        final int numCentres = 8;
+        double[][] centres = new double[numCentres][cols];
+        for (int k = 0; k < numCentres; k++) {
+            for (int j = 0; j < cols; j++) {
+                centres[k][j] = random.nextDouble() * 20.0 - 10.0;
+            }
+        }
+        MatrixDouble data = new MatrixDouble(rows, cols);
+        for (int i = 0; i < rows; i++) {
+            double[] centre = centres[random.nextInt(numCentres)];
+            for (int j = 0; j < cols; j++) {
+                data.set(centre[j] + random.nextGaussian(), i, j);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Creates a dataset of quantized (1 dimensional) time series, with
+     * samplesPerClass samples for each of the classes 1..numClasses.
+     */
+    public static TimeSeriesClassificationData quantizedDataset(Random random, int numClasses, int samplesPerClass, int length, int numSymbols) {
+        TimeSeriesClassificationData data = new TimeSeriesClassificationData(1);
+        for (int k = 1; k <= numClasses; k++) {
+            for (int n = 0; n < samplesPerClass; n++) {
+                int[] sequence = randomSequence(random, length, numSymbols);
+                MatrixDouble sample = new MatrixDouble(length, 1);
+                for (int t = 0; t < length; t++) {
+                    sample.set(sequence[t], t, 0);
+                }
+                data.addSample(k, sample);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Writes a dataset in the GRT_LABELLED_TIME_SERIES_CLASSIFICATION_DATA_FILE_V1.0
+     * format read by TimeSeriesClassificationData.loadDatasetFromFile.
+     */
+    public static void writeDataset(Random random, String filename, int numClasses, int samplesPerClass, int length, int numDimensions) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+        try {
+            writer.write("GRT_LABELLED_TIME_SERIES_CLASSIFICATION_DATA_FILE_V1.0\n");
+            writer.write("DatasetName: SyntheticData\n");
+            writer.write("InfoText: Synthetic benchmark data\n");
+            writer.write("NumDimensions: " + numDimensions + "\n");
+            writer.write("TotalNumTrainingExamples: " + numClasses * samplesPerClass + "\n");
+            writer.write("NumberOfClasses: " + numClasses + "\n");
+            writer.write("ClassIDsAndCounters: \n");
+            for (int k = 1; k <= numClasses; k++) {
+                writer.write(k + "\t" + samplesPerClass + "\n");
+            }
+            writer.write("UseExternalRanges: 0\n");
+            writer.write("LabelledTimeSeriesTrainingData:\n");
+            for (int k = 1; k <= numClasses; k++) {
+                for (int n = 0; n < samplesPerClass; n++) {
+                    writer.write("************TIME_SERIES************\n");
+                    writer.write("ClassID: " + k + "\n");
+                    writer.write("TimeSeriesLength: " + length + "\n");
+                    writer.write("TimeSeriesData: \n");
+                    for (int t = 0; t < length; t++) {
+                        for (int j = 0; j < numDimensions; j++) {
+                            if (j > 0) {
+                                writer.write(" ");
+                            }
+                            writer.write(Float.toString((float) (random.nextGaussian() * 5.0)));
+                        }
+                        writer.write("\n");
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Silences System.out. The training loops log every iteration, which would
+     * otherwise flood the benchmark output and be measured as well.
+     */
+    public static void silenceSystemOut() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+}
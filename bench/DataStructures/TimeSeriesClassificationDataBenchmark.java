@@ -0,0 +1,97 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package DataStructures;
+
+import Benchmarks.SyntheticData;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks loading a GRT labelled time series file that is written to a
+ * temporary file before the run, and the same dataset in the binary format.
+ *
+ * @author Пользователь
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimeSeriesClassificationDataBenchmark {
+
+    @Param({"7"})
+    public int numClasses;
+
+    @Param({"50", "500"})
+    public int samplesPerClass;
+
+    @Param({"100"})
+    public int sequenceLength;
+
+    @Param({"3"})
+    public int numDimensions;
+
+    @Param({"1", "4"})
+    public int numThreads;
+
+    private File file;
+    private File binaryFile;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("TimeSeriesClassificationDataBenchmark", ".txt");
+        SyntheticData.writeDataset(new Random(SyntheticData.SEED), file.getPath(), numClasses, samplesPerClass, sequenceLength, numDimensions);
+        binaryFile = File.createTempFile("TimeSeriesClassificationDataBenchmark", ".bin");
+        MappedTimeSeriesData.convert(file.getPath(), binaryFile.getPath(), 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+        binaryFile.delete();
+    }
+
+    @Benchmark
+    public TimeSeriesClassificationData loadDatasetFromFile() throws IOException {
+        TimeSeriesClassificationData data = new TimeSeriesClassificationData();
+        data.loadDatasetFromFile(file.getPath());
+        return data;
+    }
+
+    @Benchmark
+    public TimeSeriesClassificationData loadDatasetFromFileMapped() throws IOException {
+        TimeSeriesClassificationData data = new TimeSeriesClassificationData();
+        data.loadDatasetFromFile(file.getPath(), numThreads);
+        return data;
+    }
+
+    @Benchmark
+    public TimeSeriesClassificationData loadDatasetFromBinaryFile() throws IOException {
+        TimeSeriesClassificationData data = new TimeSeriesClassificationData();
+        data.loadDatasetFromBinaryFile(binaryFile.getPath());
+        return data;
+    }
+
+    @Benchmark
+    public MappedTimeSeriesData openMappedDataset() throws IOException {
+        return MappedTimeSeriesData.open(binaryFile.getPath());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+import Benchmarks.SyntheticData;
+import Util.MatrixDouble;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks one E step and one M step of the KMeans training loop on random
+ * clustered data.
+ *
+ * @author Пользователь
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KMeansBenchmark {
+
+    @Param({"10000", "100000"})
+    public int numSamples;
+
+    @Param({"20", "64", "256"})
+    public int numClusters;
+
+    @Param({"3", "16"})
+    public int numDimensions;
+
+    private KMeans kmeans;
+    private MatrixDouble data;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(SyntheticData.SEED);
+        data = SyntheticData.randomMatrix(random, numSamples, numDimensions);
+
+        kmeans = new KMeans();
+        kmeans.setNumClusters(numClusters);
+        kmeans.numTrainingSamples = numSamples;
+        kmeans.numInputDimensions = numDimensions;
+        kmeans.assign = new int[numSamples];
+        kmeans.count = new int[numClusters];
+        kmeans.clusters.resize(numClusters, numDimensions);
+        for (int k = 0; k < numClusters; k++) {
+            int row = random.nextInt(numSamples);
+            for (int j = 0; j < numDimensions; j++) {
+                kmeans.clusters.set(data.get(row, j), k, j);
+            }
+        }
+        kmeans.estep(data);
+    }
+
+    @Benchmark
+    public int estep() {
+        return kmeans.estep(data);
+    }
+
+    /**
+     * The M step recomputes the centroids from the current assignment, which
+     * does not change between invocations.
+     */
+    @Benchmark
+    public MatrixDouble mstep() {
+        kmeans.mstep(data);
+        return kmeans.clusters;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+import Benchmarks.SyntheticData;
+import Util.MatrixDouble;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks quantizing single frames with a KMeansQuantizer. The codebook is
+ * filled with random frames rather than trained, as only its size matters for
+ * the cost of a quantize call.
+ *
+ * @author Пользователь
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KMeansQuantizerBenchmark {
+
+    @Param({"20", "64", "256"})
+    public int numClusters;
+
+    @Param({"3", "16"})
+    public int numDimensions;
+
+    private static final int NUM_FRAMES = 1024;
+
+    private KMeansQuantizer quantizer;
+    private ArrayList<ArrayList<Double>> frames;
+    private int frameIndex = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(SyntheticData.SEED);
+        MatrixDouble data = SyntheticData.randomMatrix(random, NUM_FRAMES, numDimensions);
+
+        quantizer = new KMeansQuantizer(numClusters);
+        quantizer.clusters = new MatrixDouble(numClusters, numDimensions);
+        for (int k = 0; k < numClusters; k++) {
+            int row = random.nextInt(NUM_FRAMES);
+            for (int j = 0; j < numDimensions; j++) {
+                quantizer.clusters.set(data.get(row, j), k, j);
+            }
+        }
+        quantizer.numInputDimensions = numDimensions;
+        quantizer.trained = true;
+
+        frames = new ArrayList<ArrayList<Double>>(NUM_FRAMES);
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            frames.add(data.getRowVector(i));
+        }
+    }
+
+    @Benchmark
+    public int quantize() {
+        frameIndex = (frameIndex + 1) % NUM_FRAMES;
+        return quantizer.quantize(frames.get(frameIndex));
+    }
+}
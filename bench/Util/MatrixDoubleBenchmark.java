@@ -0,0 +1,69 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Util;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks building a MatrixDouble one row at a time with push_back, and
+ * with a single bulk append.
+ *
+ * @author Пользователь
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatrixDoubleBenchmark {
+
+    @Param({"1000", "10000"})
+    public int numRows;
+
+    @Param({"1", "3"})
+    public int numCols;
+
+    private ArrayList<Double> row;
+    private double[] values;
+
+    @Setup
+    public void setup() {
+        row = new ArrayList<Double>(numCols);
+        for (int j = 0; j < numCols; j++) {
+            row.add((double) j);
+        }
+        values = new double[numRows * numCols];
+    }
+
+    @Benchmark
+    public MatrixDouble pushBack() {
+        MatrixDouble matrix = new MatrixDouble();
+        for (int i = 0; i < numRows; i++) {
+            matrix.push_back(row);
+        }
+        return matrix;
+    }
+
+    @Benchmark
+    public MatrixDouble append() {
+        MatrixDouble matrix = new MatrixDouble();
+        matrix.append(values, 0, numRows, numCols);
+        return matrix;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hmm;
+
+import Benchmarks.SyntheticData;
+import DataStructures.TimeSeriesClassificationData;
+import Util.MatrixDouble;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks training and prediction of a multi-class HMM on random quantized
+ * data.
+ *
+ * @author Пользователь
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HMMBenchmark {
+
+    @Param({"2", "7", "16"})
+    public int numClasses;
+
+    @Param({"4", "20"})
+    public int numStates;
+
+    @Param({"20", "64"})
+    public int numSymbols;
+
+    @Param({"100", "1000"})
+    public int sequenceLength;
+
+    private static final int SAMPLES_PER_CLASS = 10;
+
+    private TimeSeriesClassificationData trainingData;
+    private HMM trainer;
+    private HMM trained;
+    private MatrixDouble timeseries;
+
+    @Setup
+    public void setup() {
+        SyntheticData.silenceSystemOut();
+        Random random = new Random(SyntheticData.SEED);
+        trainingData = SyntheticData.quantizedDataset(random, numClasses, SAMPLES_PER_CLASS, sequenceLength, numSymbols);
+        timeseries = trainingData.get(0).getData();
+
+        trainer = newHMM();
+        trainer.setMaxNumIterations(1);
+
+        trained = newHMM();
+        trained.setMaxNumIterations(5);
+        trained.train(trainingData);
+    }
+
+    private HMM newHMM() {
+        HMM hmm = new HMM();
+        hmm.setNumStates(numStates);
+        hmm.setNumSymbols(numSymbols);
+        hmm.setModelType(HMMModelTipes.LEFTRIGHT);
+        hmm.setDelta(1);
+        hmm.setRandomSeed(SyntheticData.SEED);
+        return hmm;
+    }
+
+    /**
+     * A full HMM.train call with one Baum-Welch iteration per model, which
+     * includes the random restarts and the null rejection thresholds.
+     */
+    @Benchmark
+    public boolean train() {
+        return trainer.train(trainingData);
+    }
+
+    @Benchmark
+    public boolean predict() {
+        return trained.predict(timeseries);
+    }
+
+    @Benchmark
+    public HMMPrediction classify() {
+        return trained.classify(timeseries);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hmm;
+
+import Benchmarks.SyntheticData;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the forward/backward, predict and Baum-Welch kernels of a single
+ * HiddenMarkovModel on random sequences.
+ *
+ * @author Пользователь
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HiddenMarkovModelBenchmark {
+
+    @Param({"4", "20", "60"})
+    public int numStates;
+
+    @Param({"20", "64"})
+    public int numSymbols;
+
+    @Param({"100", "1000"})
+    public int sequenceLength;
+
+    @Param({"ERGODIC", "LEFTRIGHT"})
+    public HMMModelTipes modelType;
+
+    private static final int NUM_TRAINING_SEQUENCES = 20;
+
+    private HiddenMarkovModel model;
+    private HMMTrainingObject workspace;
+    private HMMViterbiWorkspace viterbiWorkspace;
+    private int[] sequence;
+    private int[][] trainingSequences;
+
+    @Setup
+    public void setup() {
+        SyntheticData.silenceSystemOut();
+        Random random = new Random(SyntheticData.SEED);
+        model = new HiddenMarkovModel();
+        model.random = new Random(SyntheticData.SEED);
+        model.resetModel(numStates, numSymbols, modelType, 1);
+        sequence = SyntheticData.randomSequence(random, sequenceLength, numSymbols);
+        trainingSequences = SyntheticData.randomSequences(random, NUM_TRAINING_SEQUENCES, sequenceLength, numSymbols);
+        workspace = new HMMTrainingObject();
+        workspace.resize(sequenceLength, numStates, true);
+        viterbiWorkspace = new HMMViterbiWorkspace();
+        model.updateFlatModel();
+    }
+
+    @Benchmark
+    public boolean forwardBackward() {
+        return model.forwardBackward(workspace, sequence);
+    }
+
+    @Benchmark
+    public double predict() {
+        return model.predict(sequence);
+    }
+
+    @Benchmark
+    public boolean viterbi() {
+        return model.viterbi(sequence, viterbiWorkspace);
+    }
+
+    /**
+     * One Baum-Welch iteration over NUM_TRAINING_SEQUENCES sequences. The
+     * model keeps being re-estimated between invocations, which does not
+     * change the cost of an iteration.
+     */
+    @Benchmark
+    public boolean trainIteration() {
+        return model.train_(trainingSequences, 1);
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package DataStructures;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of the positions of the samples of one class in a dataset.
+ *
+ * @author Пользователь
+ */
+final class ClassSamples {
+
+    int[] positions = new int[8];
+    int size = 0;
+
+    void add(int position) {
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        positions[size++] = position;
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package DataStructures;
+
+import Util.ClassTracker;
+import Util.MatrixDouble;
+import Util.MinMax;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A labelled time series dataset stored in a binary file and read through a
+ * memory map. Opening a file only reads its header, the frames stay in the
+ * page cache and are shared by every process that maps the same file.
+ *
+ * The file is little-endian and holds, in order:
+ * <ul>
+ * <li>a fixed header: magic, version, numDimensions, numSamples, numClasses,
+ * useExternalRanges (ints), totalNumFrames and dataOffset (longs)</li>
+ * <li>the dataset name and info text (int length then UTF-8 bytes)</li>
+ * <li>the external ranges (int count then min max pairs)</li>
+ * <li>the class tracker (label, counter and name of each class)</li>
+ * <li>the class label of each sample, then the index of the first frame of
+ * each sample plus the total number of frames</li>
+ * <li>at dataOffset, a multiple of 8, the frames of all the samples one after
+ * the other, each frame being numDimensions doubles</li>
+ * </ul>
+ *
+ * A map can not be larger than 2 GB, so the frames are mapped in segments
+ * that each hold whole samples.
+ *
+ * @author Пользователь
+ */
+public class MappedTimeSeriesData {
+
+    private static final int MAGIC = 0x47525442;                //"GRTB"
+    private static final int VERSION = 1;
+    private static final int FIXED_HEADER_SIZE = 40;
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE & ~7L;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private String datasetName = "NOT_SET";
+    private String infoText = "";
+    private int numDimensions = 0;
+    private int numSamples = 0;
+    private boolean useExternalRanges = false;
+    private ArrayList<MinMax> externalRanges = new ArrayList<MinMax>();
+    private ArrayList<ClassTracker> classTracker = new ArrayList<ClassTracker>();
+    private int[] classLabels;              //The class label of each sample
+    private long[] frameOffsets;            //The first frame of each sample, and the total number of frames last
+    private MappedByteBuffer[] segments;    //The maps holding the frames
+    private long[] segmentStart;            //The first frame of each segment
+    private int[] sampleSegment;            //The segment holding each sample
+
+    private MappedTimeSeriesData() {
+    }
+
+    /**
+     * Converts a file in the GRT labelled time series text format to the
+     * binary format.
+     *
+     * @param textFilename: the GRT text file to read
+     * @param binaryFilename: the binary file to write
+     * @param numThreads: the number of threads parsing the text file
+     * @return true if the file was converted, false otherwise
+     */
+    public static boolean convert(String textFilename, String binaryFilename, int numThreads) throws IOException {
+        TimeSeriesClassificationData data = new TimeSeriesClassificationData();
+        if (!data.loadDatasetFromFile(textFilename, numThreads)) {
+            System.err.println("convert(String textFilename, String binaryFilename) - Failed to load " + textFilename + "!");
+            return false;
+        }
+        return save(data, binaryFilename);
+    }
+
+    /**
+     * Writes a dataset to a binary file.
+     *
+     * @return true if the dataset was saved, false otherwise
+     */
+    public static boolean save(TimeSeriesClassificationData data, String filename) throws IOException {
+        final int D = data.numDimensions;
+        final int numSamples = data.getNumSamples();
+        byte[] name = data.datasetName.getBytes(StandardCharsets.UTF_8);
+        byte[] info = data.infoText.getBytes(StandardCharsets.UTF_8);
+        byte[][] classNames = new byte[data.classTracker.size()][];
+        int numRanges = data.useExternalRanges ? data.externalRanges.size() : 0;
+
+        //Work out the size of the header
+        long headerSize = FIXED_HEADER_SIZE + 4 + name.length + 4 + info.length + 4 + 16L * numRanges;
+        for (int k = 0; k < classNames.length; k++) {
+            classNames[k] = data.classTracker.get(k).className.getBytes(StandardCharsets.UTF_8);
+            headerSize += 12 + classNames[k].length;
+        }
+        headerSize += 4L * numSamples + 8L * (numSamples + 1);
+        long dataOffset = (headerSize + 7) & ~7L;
+        if (dataOffset > MAX_SEGMENT_SIZE) {
+            System.err.println("save(TimeSeriesClassificationData data, String filename) - The header is too large!");
+            return false;
+        }
+
+        long totalNumFrames = 0;
+        for (int x = 0; x < numSamples; x++) {
+            MatrixDouble sample = data.get(x).getData();
+            if (sample.getNumRows() > 0 && sample.getNumCols() != D) {
+                System.err.println("save(TimeSeriesClassificationData data, String filename) - Sample " + x + " does not have " + D + " dimensions!");
+                return false;
+            }
+            totalNumFrames += sample.getNumRows();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(D).putInt(numSamples).putInt(classNames.length);
+        header.putInt(data.useExternalRanges ? 1 : 0).putLong(totalNumFrames).putLong(dataOffset);
+        header.putInt(name.length).put(name);
+        header.putInt(info.length).put(info);
+        header.putInt(numRanges);
+        for (int i = 0; i < numRanges; i++) {
+            header.putDouble(data.externalRanges.get(i).minValue).putDouble(data.externalRanges.get(i).maxValue);
+        }
+        for (int k = 0; k < classNames.length; k++) {
+            header.putInt(data.classTracker.get(k).classLabel).putInt(data.classTracker.get(k).counter);
+            header.putInt(classNames[k].length).put(classNames[k]);
+        }
+        for (int x = 0; x < numSamples; x++) {
+            header.putInt(data.get(x).getClassLabel());
+        }
+        long frame = 0;
+        for (int x = 0; x < numSamples; x++) {
+            header.putLong(frame);
+            frame += data.get(x).getLength();
+        }
+        header.putLong(frame);
+        header.position(0);
+
+        FileChannel channel;
+        try {
+            channel = new FileOutputStream(filename).getChannel();
+        } catch (FileNotFoundException ex) {
+            System.err.println("save(TimeSeriesClassificationData data, String filename) - FILE NOT OPEN!");
+            return false;
+        }
+        try {
+            writeFully(channel, header);
+
+            //Stream the frames through a fixed buffer
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(WRITE_BUFFER_SIZE, 8 * D)).order(ByteOrder.LITTLE_ENDIAN);
+            double[] row = new double[D];
+            for (int x = 0; x < numSamples; x++) {
+                MatrixDouble sample = data.get(x).getData();
+                for (int i = 0; i < sample.getNumRows(); i++) {
+                    if (buffer.remaining() < 8 * D) {
+                        buffer.flip();
+                        writeFully(channel, buffer);
+                        buffer.clear();
+                    }
+                    sample.getRow(i, row, 0);
+                    for (int j = 0; j < D; j++) {
+                        buffer.putDouble(row[j]);
+                    }
+                }
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+        } finally {
+            channel.close();
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Opens a binary dataset file, reading its header and mapping its frames.
+     *
+     * @return the dataset, or null if the file could not be opened or is not a
+     * valid dataset file
+     */
+    public static MappedTimeSeriesData open(String filename) throws IOException {
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(filename, "r");
+        } catch (FileNotFoundException ex) {
+            System.err.println("open(String filename) - FILE NOT OPEN!");
+            return null;
+        }
+
+        FileChannel channel = file.getChannel();
+        try {
+            long fileSize = channel.size();
+            if (fileSize < FIXED_HEADER_SIZE) {
+                System.err.println("open(String filename) - The file is too small to be a dataset file!");
+                return null;
+            }
+            ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (fixed.hasRemaining()) {
+                if (channel.read(fixed, fixed.position()) < 0) {
+                    break;
+                }
+            }
+            fixed.flip();
+            if (fixed.getInt() != MAGIC) {
+                System.err.println("open(String filename) - Failed to find file header!");
+                return null;
+            }
+            int version = fixed.getInt();
+            if (version != VERSION) {
+                System.err.println("open(String filename) - Unsupported file version " + version + "!");
+                return null;
+            }
+
+            MappedTimeSeriesData dataset = new MappedTimeSeriesData();
+            dataset.numDimensions = fixed.getInt();
+            dataset.numSamples = fixed.getInt();
+            int numClasses = fixed.getInt();
+            dataset.useExternalRanges = fixed.getInt() != 0;
+            long totalNumFrames = fixed.getLong();
+            long dataOffset = fixed.getLong();
+            if (dataset.numDimensions < 0 || dataset.numSamples < 0 || numClasses < 0 || totalNumFrames < 0
+                    || dataOffset < FIXED_HEADER_SIZE || dataOffset > MAX_SEGMENT_SIZE || (dataOffset & 7) != 0
+                    || (fileSize - dataOffset) / 8 / Math.max(1, dataset.numDimensions) < totalNumFrames) {
+                System.err.println("open(String filename) - The header does not match the size of the file!");
+                return null;
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+            header.position(FIXED_HEADER_SIZE);
+            dataset.datasetName = readString(header);
+            dataset.infoText = readString(header);
+            int numRanges = header.getInt();
+            for (int i = 0; i < numRanges; i++) {
+                double min = header.getDouble();
+                dataset.externalRanges.add(new MinMax(min, header.getDouble()));
+            }
+            for (int k = 0; k < numClasses; k++) {
+                int classLabel = header.getInt();
+                int counter = header.getInt();
+                dataset.classTracker.add(new ClassTracker(classLabel, counter, readString(header)));
+            }
+            dataset.classLabels = new int[dataset.numSamples];
+            header.asIntBuffer().get(dataset.classLabels);
+            header.position(header.position() + 4 * dataset.numSamples);
+            dataset.frameOffsets = new long[dataset.numSamples + 1];
+            header.asLongBuffer().get(dataset.frameOffsets);
+            for (int x = 0; x < dataset.numSamples; x++) {
+                if (dataset.frameOffsets[x] < 0 || dataset.frameOffsets[x] > dataset.frameOffsets[x + 1]) {
+                    System.err.println("open(String filename) - The frame offsets are not valid!");
+                    return null;
+                }
+            }
+            if (dataset.frameOffsets[dataset.numSamples] != totalNumFrames) {
+                System.err.println("open(String filename) - The frame offsets do not match the number of frames!");
+                return null;
+            }
+
+            if (!dataset.mapFrames(channel, dataOffset)) {
+                return null;
+            }
+            return dataset;
+        } catch (RuntimeException ex) {
+            //A truncated header or a negative length read from a damaged file
+            System.err.println("open(String filename) - Failed to read the header! " + ex);
+            return null;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Maps the frames in as few segments as possible, each one starting at a
+     * sample and holding whole samples.
+     */
+    private boolean mapFrames(FileChannel channel, long dataOffset) throws IOException {
+        final long frameSize = 8L * numDimensions;
+        ArrayList<MappedByteBuffer> maps = new ArrayList<MappedByteBuffer>();
+        ArrayList<Long> starts = new ArrayList<Long>();
+        sampleSegment = new int[numSamples];
+
+        int x = 0;
+        while (x < numSamples) {
+            long first = frameOffsets[x];
+            int end = x;
+            while (end < numSamples && (frameOffsets[end + 1] - first) * frameSize <= MAX_SEGMENT_SIZE) {
+                sampleSegment[end++] = maps.size();
+            }
+            if (end == x) {
+                System.err.println("mapFrames() - Sample " + x + " is larger than 2 GB and can not be mapped!");
+                return false;
+            }
+            long size = (frameOffsets[end] - first) * frameSize;
+            maps.add(channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + first * frameSize, size));
+            starts.add(first);
+            x = end;
+        }
+
+        segments = maps.toArray(new MappedByteBuffer[maps.size()]);
+        segmentStart = new long[starts.size()];
+        for (int s = 0; s < segmentStart.length; s++) {
+            segmentStart[s] = starts.get(s);
+        }
+        return true;
+    }
+
+    public String getDatasetName() {
+        return datasetName;
+    }
+
+    public String getInfoText() {
+        return infoText;
+    }
+
+    public int getNumDimensions() {
+        return numDimensions;
+    }
+
+    public int getNumSamples() {
+        return numSamples;
+    }
+
+    public int getNumClasses() {
+        return classTracker.size();
+    }
+
+    public ArrayList<ClassTracker> getClassTracker() {
+        return classTracker;
+    }
+
+    public long getTotalNumFrames() {
+        return frameOffsets[numSamples];
+    }
+
+    public int getClassLabel(int i) {
+        return classLabels[i];
+    }
+
+    public int getLength(int i) {
+        return (int) (frameOffsets[i + 1] - frameOffsets[i]);
+    }
+
+    /**
+     * Returns the frames of sample i straight from the map, row-major, without
+     * copying them. The buffer is read-only.
+     */
+    public DoubleBuffer getSampleBuffer(int i) {
+        final int s = sampleSegment[i];
+        final int frameSize = 8 * numDimensions;
+        ByteBuffer buffer = segments[s].duplicate();
+        int start = (int) ((frameOffsets[i] - segmentStart[s]) * frameSize);
+        buffer.position(start);
+        buffer.limit(start + getLength(i) * frameSize);
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    /**
+     * Copies sample i into a new matrix.
+     */
+    public MatrixDouble getSample(int i) {
+        MatrixDouble sample = new MatrixDouble(getLength(i), numDimensions);
+        if (sample.getData() != null) {
+            getSampleBuffer(i).get(sample.getData());
+        }
+        return sample;
+    }
+
+    /**
+     * Returns the samples one after the other without holding more than one
+     * sample on the heap, for example to train a KMeansQuantizer with mini
+     * batches. Each matrix is only valid until the next one is returned, as
+     * they share the same buffer.
+     */
+    public Iterable<MatrixDouble> getSamples() {
+        return new Iterable<MatrixDouble>() {
+            @Override
+            public Iterator<MatrixDouble> iterator() {
+                return new Iterator<MatrixDouble>() {
+                    private int next = 0;
+                    private double[] buffer = new double[0];
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < numSamples;
+                    }
+
+                    @Override
+                    public MatrixDouble next() {
+                        if (next >= numSamples) {
+                            throw new NoSuchElementException();
+                        }
+                        int length = getLength(next) * numDimensions;
+                        if (buffer.length < length) {
+                            buffer = new double[Math.max(length, buffer.length * 2)];
+                        }
+                        getSampleBuffer(next).get(buffer, 0, length);
+                        return MatrixDouble.wrap(buffer, 0, getLength(next++), numDimensions);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Copies the dataset into data, replacing its samples. All the frames are
+     * copied into one array and each sample is a view of it, so this makes one
+     * large allocation rather than one per sample.
+     *
+     * @return true if the dataset was copied, false if it is too large for
+     * one array
+     */
+    boolean copyTo(TimeSeriesClassificationData data) {
+        long numValues = getTotalNumFrames() * numDimensions;
+        if (numValues > Integer.MAX_VALUE - 8) {
+            System.err.println("copyTo(TimeSeriesClassificationData data) - The dataset has too many values (" + numValues + ") to be loaded into memory!");
+            return false;
+        }
+
+        data.clear();
+        data.datasetName = datasetName;
+        data.infoText = infoText;
+        data.numDimensions = numDimensions;
+        data.useExternalRanges = useExternalRanges;
+        data.externalRanges.clear();
+        for (MinMax range : externalRanges) {
+            data.externalRanges.add(new MinMax(range.minValue, range.maxValue));
+        }
+        for (ClassTracker tracker : classTracker) {
+            data.classTracker.add(new ClassTracker(tracker.classLabel, tracker.counter, tracker.className));
+        }
+
+        double[] frames = new double[(int) numValues];
+        data.data.ensureCapacity(numSamples);
+        for (int x = 0; x < numSamples; x++) {
+            int length = getLength(x);
+            MatrixDouble sample;
+            if (length > 0) {
+                int offset = (int) (frameOffsets[x] * numDimensions);
+                getSampleBuffer(x).get(frames, offset, length * numDimensions);
+                sample = MatrixDouble.wrap(frames, offset, length, numDimensions);
+            } else {
+                sample = new MatrixDouble(0, numDimensions);
+            }
+            data.data.add(new TimeSeriesClassificationSample(classLabels[x], sample));
+        }
+        data.totalNumSamples = numSamples;
+        return true;
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package DataStructures;
+
+import Util.ClassTracker;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A dataset of labelled symbol sequences, such as quantized time series for
+ * the HMM. The symbols of all the samples are stored one after the other in a
+ * single array, of bytes when there are at most 256 symbols and of shorts when
+ * there are at most 65536, so a frame takes one or two bytes rather than a row
+ * of a MatrixDouble.
+ *
+ * @author Пользователь
+ */
+public class QuantizedSequenceData {
+
+    public static final int MAX_NUM_SYMBOLS = 1 << 16;
+    private static final int MAGIC = 0x47525451;           //"GRTQ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    private final int numSymbols;                   //The symbols are in [0 numSymbols-1]
+    private byte[] byteSymbols;                     //The symbols when numSymbols <= 256, stored unsigned
+    private short[] shortSymbols;                   //The symbols otherwise, stored unsigned
+    private int totalNumFrames = 0;
+    private int numSamples = 0;
+    private int[] offsets = new int[1];             //The first frame of each sample, and totalNumFrames last
+    private int[] classLabels = new int[0];         //The class label of each sample
+    private final ArrayList<ClassTracker> classTracker = new ArrayList<ClassTracker>();
+    private final HashMap<Integer, Integer> trackers = new HashMap<Integer, Integer>();           //The position of each class label in classTracker
+    private final HashMap<Integer, ClassSamples> classSamples = new HashMap<Integer, ClassSamples>();  //The samples of each class label
+
+    /**
+     * @param numSymbols: the number of symbols, in [1 MAX_NUM_SYMBOLS]
+     */
+    public QuantizedSequenceData(int numSymbols) {
+        if (numSymbols < 1 || numSymbols > MAX_NUM_SYMBOLS) {
+            throw new IllegalArgumentException("QuantizedSequenceData(int numSymbols) - The number of symbols must be in [1 " + MAX_NUM_SYMBOLS + "]! It is: " + numSymbols);
+        }
+        this.numSymbols = numSymbols;
+        if (numSymbols <= 256) {
+            byteSymbols = new byte[64];
+        } else {
+            shortSymbols = new short[64];
+        }
+    }
+
+    /**
+     * Adds a sample made of length symbols of symbols, starting at offset.
+     *
+     * @return true if the sample was added, false if a symbol is out of range
+     */
+    public boolean addSample(int classLabel, int[] symbols, int offset, int length) {
+        for (int t = offset; t < offset + length; t++) {
+            if (symbols[t] < 0 || symbols[t] >= numSymbols) {
+                System.err.println("addSample(int classLabel, int[] symbols) - Found a symbol outside of the symbol range! Value: " + symbols[t]);
+                return false;
+            }
+        }
+
+        ensureFrameCapacity(totalNumFrames + length);
+        if (byteSymbols != null) {
+            for (int t = 0; t < length; t++) {
+                byteSymbols[totalNumFrames + t] = (byte) symbols[offset + t];
+            }
+        } else {
+            for (int t = 0; t < length; t++) {
+                shortSymbols[totalNumFrames + t] = (short) symbols[offset + t];
+            }
+        }
+        totalNumFrames += length;
+
+        if (numSamples + 1 >= offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(16, offsets.length * 2));
+            classLabels = Arrays.copyOf(classLabels, offsets.length);
+        }
+        classLabels[numSamples] = classLabel;
+        offsets[++numSamples] = totalNumFrames;
+
+        indexSample(numSamples - 1, classLabel);
+        return true;
+    }
+
+    /**
+     * Adds a sample to the class tracker and the class index.
+     */
+    private void indexSample(int position, int classLabel) {
+        ClassSamples samples = classSamples.get(classLabel);
+        if (samples == null) {
+            samples = new ClassSamples();
+            classSamples.put(classLabel, samples);
+            trackers.put(classLabel, classTracker.size());
+            classTracker.add(new ClassTracker(classLabel, 0));
+        }
+        samples.add(position);
+        classTracker.get(trackers.get(classLabel)).counter++;
+    }
+
+    public boolean addSample(int classLabel, int[] symbols) {
+        return addSample(classLabel, symbols, 0, symbols.length);
+    }
+
+    private void ensureFrameCapacity(int minCapacity) {
+        int capacity = byteSymbols != null ? byteSymbols.length : shortSymbols.length;
+        if (minCapacity <= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(minCapacity, capacity * 2);
+        if (byteSymbols != null) {
+            byteSymbols = Arrays.copyOf(byteSymbols, newCapacity);
+        } else {
+            shortSymbols = Arrays.copyOf(shortSymbols, newCapacity);
+        }
+    }
+
+    /**
+     * Releases the capacity beyond the current samples.
+     */
+    public void trimToSize() {
+        if (byteSymbols != null) {
+            byteSymbols = Arrays.copyOf(byteSymbols, totalNumFrames);
+        } else {
+            shortSymbols = Arrays.copyOf(shortSymbols, totalNumFrames);
+        }
+        offsets = Arrays.copyOf(offsets, numSamples + 1);
+        classLabels = Arrays.copyOf(classLabels, numSamples);
+    }
+
+    public int getNumSymbols() {
+        return numSymbols;
+    }
+
+    public int getNumSamples() {
+        return numSamples;
+    }
+
+    public int getTotalNumFrames() {
+        return totalNumFrames;
+    }
+
+    public int getNumClasses() {
+        return classTracker.size();
+    }
+
+    public ArrayList<ClassTracker> getClassTracker() {
+        return classTracker;
+    }
+
+    public int getClassLabel(int i) {
+        return classLabels[i];
+    }
+
+    public int getLength(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * Gets the symbol of sample i at time t.
+     */
+    public int getSymbol(int i, int t) {
+        return getSymbolAt(offsets[i] + t);
+    }
+
+    /**
+     * Copies the symbols of sample i into dest, starting at destOffset.
+     */
+    public void getSequence(int i, int[] dest, int destOffset) {
+        final int start = offsets[i];
+        final int length = offsets[i + 1] - start;
+        if (byteSymbols != null) {
+            for (int t = 0; t < length; t++) {
+                dest[destOffset + t] = byteSymbols[start + t] & 0xFF;
+            }
+        } else {
+            for (int t = 0; t < length; t++) {
+                dest[destOffset + t] = shortSymbols[start + t] & 0xFFFF;
+            }
+        }
+    }
+
+    /**
+     * Gets the symbols of sample i as a new array.
+     */
+    public int[] getSequence(int i) {
+        int[] sequence = new int[getLength(i)];
+        getSequence(i, sequence, 0);
+        return sequence;
+    }
+
+    public int getNumClassSamples(int classLabel) {
+        ClassSamples samples = classSamples.get(classLabel);
+        return samples == null ? 0 : samples.size;
+    }
+
+    /**
+     * Gets the position in the dataset of the i'th sample of the given class.
+     */
+    public int getClassSampleIndex(int classLabel, int i) {
+        ClassSamples samples = classSamples.get(classLabel);
+        if (samples == null || i < 0 || i >= samples.size) {
+            throw new IndexOutOfBoundsException("getClassSampleIndex(int classLabel, int i) - Class " + classLabel + " has no sample " + i + "!");
+        }
+        return samples.positions[i];
+    }
+
+    /**
+     * Gets the symbols of all the samples of one class, in the order of the
+     * dataset, as the observation sequences HMM training takes.
+     */
+    public int[][] getClassSequences(int classLabel) {
+        int[][] sequences = new int[getNumClassSamples(classLabel)][];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = getSequence(getClassSampleIndex(classLabel, i));
+        }
+        return sequences;
+    }
+
+    /**
+     * Gets the number of bytes used by the symbols.
+     */
+    public long getSymbolMemorySize() {
+        return byteSymbols != null ? byteSymbols.length : 2L * shortSymbols.length;
+    }
+
+    /**
+     * Saves the dataset to a little-endian binary file: a header (magic,
+     * version, numSymbols, numSamples, totalNumFrames), the class label of each
+     * sample, the frame offsets, then the symbols as unsigned bytes or shorts.
+     *
+     * @return true if the dataset was saved, false otherwise
+     */
+    public boolean save(String filename) throws IOException {
+        FileChannel channel;
+        try {
+            channel = new FileOutputStream(filename).getChannel();
+        } catch (FileNotFoundException ex) {
+            System.err.println("save(String filename) - FILE NOT OPEN!");
+            return false;
+        }
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4 * numSamples + 4 * (numSamples + 1)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(numSymbols).putInt(numSamples).putInt(totalNumFrames);
+            header.asIntBuffer().put(classLabels, 0, numSamples);
+            header.position(header.position() + 4 * numSamples);
+            header.asIntBuffer().put(offsets, 0, numSamples + 1);
+            header.position(0);
+            writeFully(channel, header);
+
+            if (byteSymbols != null) {
+                writeFully(channel, ByteBuffer.wrap(byteSymbols, 0, totalNumFrames));
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                for (int t = 0; t < totalNumFrames; t += IO_BUFFER_SIZE / 2) {
+                    int n = Math.min(IO_BUFFER_SIZE / 2, totalNumFrames - t);
+                    buffer.clear();
+                    buffer.asShortBuffer().put(shortSymbols, t, n);
+                    buffer.limit(2 * n);
+                    writeFully(channel, buffer);
+                }
+            }
+        } finally {
+            channel.close();
+        }
+        return true;
+    }
+
+    /**
+     * Loads a dataset saved with save.
+     *
+     * @return the dataset, or null if the file could not be read or is not a
+     * valid dataset file
+     */
+    public static QuantizedSequenceData load(String filename) throws IOException {
+        FileChannel channel;
+        try {
+            channel = new FileInputStream(filename).getChannel();
+        } catch (FileNotFoundException ex) {
+            System.err.println("load(String filename) - FILE NOT OPEN!");
+            return null;
+        }
+        try {
+            final long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (!readFully(channel, header) || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                System.err.println("load(String filename) - Failed to find file header!");
+                return null;
+            }
+            final int numSymbols = header.getInt(8);
+            final int numSamples = header.getInt(12);
+            final int totalNumFrames = header.getInt(16);
+            final int symbolSize = numSymbols <= 256 ? 1 : 2;
+            if (numSymbols < 1 || numSymbols > MAX_NUM_SYMBOLS || numSamples < 0 || totalNumFrames < 0
+                    || fileSize != HEADER_SIZE + 8L * numSamples + 4 + (long) symbolSize * totalNumFrames) {
+                System.err.println("load(String filename) - The header does not match the size of the file!");
+                return null;
+            }
+
+            QuantizedSequenceData data = new QuantizedSequenceData(numSymbols);
+            ByteBuffer samples = ByteBuffer.allocate(8 * numSamples + 4).order(ByteOrder.LITTLE_ENDIAN);
+            if (!readFully(channel, samples)) {
+                System.err.println("load(String filename) - Failed to read the samples!");
+                return null;
+            }
+            samples.flip();
+            data.classLabels = new int[numSamples];
+            data.offsets = new int[numSamples + 1];
+            samples.asIntBuffer().get(data.classLabels);
+            samples.position(4 * numSamples);
+            samples.asIntBuffer().get(data.offsets);
+            for (int i = 0; i < numSamples; i++) {
+                if (data.offsets[i] < 0 || data.offsets[i] > data.offsets[i + 1]) {
+                    System.err.println("load(String filename) - The frame offsets are not valid!");
+                    return null;
+                }
+            }
+            if (data.offsets[0] != 0 || data.offsets[numSamples] != totalNumFrames) {
+                System.err.println("load(String filename) - The frame offsets do not match the number of frames!");
+                return null;
+            }
+
+            if (symbolSize == 1) {
+                data.byteSymbols = new byte[totalNumFrames];
+                if (!readFully(channel, ByteBuffer.wrap(data.byteSymbols))) {
+                    System.err.println("load(String filename) - Failed to read the symbols!");
+                    return null;
+                }
+            } else {
+                data.shortSymbols = new short[totalNumFrames];
+                ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                for (int t = 0; t < totalNumFrames; t += IO_BUFFER_SIZE / 2) {
+                    int n = Math.min(IO_BUFFER_SIZE / 2, totalNumFrames - t);
+                    buffer.clear();
+                    buffer.limit(2 * n);
+                    if (!readFully(channel, buffer)) {
+                        System.err.println("load(String filename) - Failed to read the symbols!");
+                        return null;
+                    }
+                    buffer.flip();
+                    buffer.asShortBuffer().get(data.shortSymbols, t, n);
+                }
+            }
+            for (int t = 0; t < totalNumFrames; t++) {
+                if (data.getSymbolAt(t) >= numSymbols) {
+                    System.err.println("load(String filename) - Found a symbol outside of the symbol range!");
+                    return null;
+                }
+            }
+
+            data.numSamples = numSamples;
+            data.totalNumFrames = totalNumFrames;
+            for (int i = 0; i < numSamples; i++) {
+                data.indexSample(i, data.classLabels[i]);
+            }
+            return data;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int getSymbolAt(int index) {
+        return byteSymbols != null ? byteSymbols[index] & 0xFF : shortSymbols[index] & 0xFFFF;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -12,7 +12,17 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -37,6 +47,11 @@ public class TimeSeriesClassificationData {
     ArrayList<TimeSeriesClassificationSample> data
             = new ArrayList<TimeSeriesClassificationSample>();        ///< The labelled time series classification data
     // ArrayList<ArrayList<int>> crossValidationIndexs;         ///< A ArrayList to hold the indexs of the dataset for the cross validation
+    private final HashMap<Integer, Integer> classTrackerIndex
+            = new HashMap<Integer, Integer>();                ///< The position of each class label in classTracker, rebuilt when it does not match
+    private final HashMap<Integer, ClassSamples> classSamples
+            = new HashMap<Integer, ClassSamples>();           ///< The positions in data of the samples of each class label
+    private boolean classSamplesValid = false;                     ///< False when data changed without updating classSamples, which is then rebuilt on the next use
 
 //    DebugLog debugLog;                                      ///< Default debugging log
 //    ErrorLog errorLog;                                      ///< Default error log
@@ -173,10 +188,9 @@ public class TimeSeriesClassificationData {
      */
     public boolean loadDatasetFromFile(final String filename) throws IOException {
 
-        int numClasses = 0;
         clear();
 
-        BufferedReader reader;
+        final BufferedReader reader;
 
         try {
             reader = new BufferedReader(new FileReader(filename));
@@ -185,56 +199,279 @@ public class TimeSeriesClassificationData {
             return false;
         }
 
+        try {
+            LineSource in = new LineSource() {
+                @Override
+                public String readLine() throws IOException {
+                    return reader.readLine();
+                }
+            };
+
+            if (!readHeader(in)) {
+                return false;
+            }
+
+            //Reset the memory
+            data.ensureCapacity(totalNumSamples);
+
+            //Load each of the time series
+            int[] sampleHeader = new int[2];
+            for (int x = 0; x < totalNumSamples; x++) {
+                if (!readSampleHeader(in, sampleHeader)) {
+                    return false;
+                }
+                int classLabel = sampleHeader[0];
+                int timeSeriesLength = sampleHeader[1];
+
+                //Load the time series data
+                MatrixDouble trainingExample = new MatrixDouble(timeSeriesLength, numDimensions);
+                for (int i = 0; i < timeSeriesLength; i++) {
+                    String word = reader.readLine();
+                    String[] strData = word.split(" ");
+                    for (int j = 0; j < numDimensions; j++) {
+                        trainingExample.set(Double.parseDouble(strData[j]), i, j);
+                    }
+                }
+
+                data.add(new TimeSeriesClassificationSample());
+                data.get(x).setTrainingSample(classLabel, trainingExample);
+            }
+
+            //System.out.println("In TimeSeries loadDattaSet.\n DataSet: " + this);
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Loads the same file format as loadDatasetFromFile(String), with the same
+     * result, but faster: the file is memory-mapped, the values are parsed
+     * without creating a String for each one, and once the sample headers
+     * have been read the samples are parsed on numThreads threads. Files of
+     * 2 GB or more are read with loadDatasetFromFile(String).
+     *
+     * @param filename: the name of the file the data will be loaded from
+     * @param numThreads: the number of threads parsing the samples
+     * @return true if the data was loaded successfully, false otherwise
+     */
+    public boolean loadDatasetFromFile(final String filename, final int numThreads) throws IOException {
+        if (numThreads < 1) {
+            System.err.println("loadDatasetFromFile(String filename, int numThreads) - The number of threads must be greater than zero!");
+            return false;
+        }
+
+        clear();
+
+        FileChannel channel;
+        try {
+            channel = new RandomAccessFile(filename, "r").getChannel();
+        } catch (FileNotFoundException ex) {
+            System.err.println("loadDatasetFromFile(String filename, int numThreads) - FILE NOT OPEN!");
+            return false;
+        }
+
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                channel.close();
+                return loadDatasetFromFile(filename);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final TimeSeriesFileParser parser = new TimeSeriesFileParser(buffer);
+            LineSource in = new LineSource() {
+                @Override
+                public String readLine() {
+                    return parser.readLine();
+                }
+            };
+
+            if (!readHeader(in)) {
+                return false;
+            }
+
+            //Index the samples: read their headers and skip over their data
+            final int numSamples = totalNumSamples;
+            final int[] classLabels = new int[numSamples];
+            final int[] starts = new int[numSamples];
+            final MatrixDouble[] samples = new MatrixDouble[numSamples];
+            int[] sampleHeader = new int[2];
+            for (int x = 0; x < numSamples; x++) {
+                if (!readSampleHeader(in, sampleHeader)) {
+                    return false;
+                }
+                classLabels[x] = sampleHeader[0];
+                starts[x] = parser.getPosition();
+                samples[x] = new MatrixDouble(sampleHeader[1], numDimensions);
+                if (!parser.skipLines(sampleHeader[1])) {
+                    System.err.println("loadDatasetFromFile(String filename, int numThreads) - Failed to find TimeSeriesData of sample " + x + "!");
+                    return false;
+                }
+            }
+            final int dataEnd = parser.getPosition();
+
+            //Parse the samples in blocks of about the same number of bytes, a few per thread so they balance out
+            final int numBlocks = Math.max(1, Math.min(numSamples, numThreads > 1 ? numThreads * 4 : 1));
+            final int[] blockStart = new int[numBlocks + 1];
+            for (int b = 1, x = 0; b < numBlocks; b++) {
+                long target = starts[0] + (long) (dataEnd - starts[0]) * b / numBlocks;
+                while (x < numSamples && starts[x] < target) {
+                    x++;
+                }
+                blockStart[b] = Math.max(x, blockStart[b - 1]);
+            }
+            blockStart[numBlocks] = numSamples;
+
+            List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(numBlocks);
+            for (int b = 0; b < numBlocks; b++) {
+                final int block = b;
+                tasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        TimeSeriesFileParser blockParser = new TimeSeriesFileParser(buffer.duplicate());
+                        for (int x = blockStart[block]; x < blockStart[block + 1]; x++) {
+                            MatrixDouble sample = samples[x];
+                            if (sample.getData() == null) {
+                                continue;
+                            }
+                            if (!blockParser.parseRows(starts[x], sample.getNumRows(), numDimensions, sample.getData())) {
+                                System.err.println("loadDatasetFromFile(String filename, int numThreads) - Sample " + x + " has fewer than " + numDimensions + " values in a row!");
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                });
+            }
+
+            ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(Math.min(numThreads, numBlocks)) : null;
+            try {
+                if (executor == null) {
+                    for (Callable<Boolean> task : tasks) {
+                        if (!task.call()) {
+                            return false;
+                        }
+                    }
+                } else {
+                    List<Future<Boolean>> results = executor.invokeAll(tasks);
+                    for (Future<Boolean> result : results) {
+                        if (!result.get()) {
+                            return false;
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                System.err.println("loadDatasetFromFile(String filename, int numThreads) - Interrupted while parsing the samples!");
+                return false;
+            } catch (ExecutionException ex) {
+                System.err.println("loadDatasetFromFile(String filename, int numThreads) - Failed to parse the samples! " + ex.getCause());
+                return false;
+            } catch (Exception ex) {
+                System.err.println("loadDatasetFromFile(String filename, int numThreads) - Failed to parse the samples! " + ex);
+                return false;
+            } finally {
+                if (executor != null) {
+                    executor.shutdown();
+                }
+            }
+
+            data.ensureCapacity(numSamples);
+            for (int x = 0; x < numSamples; x++) {
+                data.add(new TimeSeriesClassificationSample(classLabels[x], samples[x]));
+            }
+            return true;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Saves the dataset in the binary format of MappedTimeSeriesData, which
+     * loads much faster than the text format.
+     *
+     * @param filename: the name of the file the data will be saved to
+     * @return true if the data was saved successfully, false otherwise
+     */
+    public boolean saveDatasetToBinaryFile(final String filename) throws IOException {
+        return MappedTimeSeriesData.save(this, filename);
+    }
+
+    /**
+     * Loads a dataset saved with saveDatasetToBinaryFile. The file is
+     * memory-mapped and all the frames are copied with one allocation. Use
+     * MappedTimeSeriesData directly to read the samples without copying them.
+     *
+     * @param filename: the name of the file the data will be loaded from
+     * @return true if the data was loaded successfully, false otherwise
+     */
+    public boolean loadDatasetFromBinaryFile(final String filename) throws IOException {
+        clear();
+        MappedTimeSeriesData dataset = MappedTimeSeriesData.open(filename);
+        if (dataset == null) {
+            System.err.println("loadDatasetFromBinaryFile(String filename) - Failed to open " + filename + "!");
+            return false;
+        }
+        return dataset.copyTo(this);
+    }
+
+    /**
+     * A source of text lines, so both loaders share the header parsing.
+     */
+    private interface LineSource {
+
+        String readLine() throws IOException;
+    }
+
+    /**
+     * Reads the file header up to and including the
+     * LabelledTimeSeriesTrainingData line.
+     */
+    private boolean readHeader(LineSource reader) throws IOException {
+        int numClasses = 0;
         String word;
 
         //Check to make sure this is a file with the Training File Format
         word = reader.readLine();
-        if (!word.equals("GRT_LABELLED_TIME_SERIES_CLASSIFICATION_DATA_FILE_V1.0")) {
+        if (word == null || !word.equals("GRT_LABELLED_TIME_SERIES_CLASSIFICATION_DATA_FILE_V1.0")) {
             System.err.println("loadDatasetFromFile(String filename) - Failed to find file header!");
-            reader.close();
             return false;
         }
 
         //Get the name of the dataset
         word = reader.readLine();
-        if (!word.contains("DatasetName:")) {
+        if (word == null || !word.contains("DatasetName:")) {
             System.err.println("loadDatasetFromFile(String filename) - failed to find DatasetName!");
-            reader.close();
             return false;
         }
         datasetName = word.split(" ")[1];
 
         word = reader.readLine();
-        if (!word.contains("InfoText:")) {
+        if (word == null || !word.contains("InfoText:")) {
             System.err.println("loadDatasetFromFile(String filename) - failed to find InfoText!");
-            reader.close();
             return false;
         }
         infoText = word.split(" ")[1];
 
         word = reader.readLine();
         //Get the number of dimensions in the training data
-        if (!word.contains("NumDimensions:")) {
+        if (word == null || !word.contains("NumDimensions:")) {
             System.err.println("loadDatasetFromFile(String filename) - Failed to find NumDimensions!");
-            reader.close();
             return false;
         }
         numDimensions = Integer.parseInt(word.split(" ")[1]);
 
         //Get the total number of training examples in the training data
         word = reader.readLine();
-        if (!word.contains("TotalNumTrainingExamples:")) {
+        if (word == null || !word.contains("TotalNumTrainingExamples:")) {
             System.err.println("loadDatasetFromFile(String filename) - Failed to find TotalNumTrainingExamples!");
-            reader.close();
             return false;
         }
         totalNumSamples = Integer.parseInt(word.split(" ")[1]);
 
         //Get the total number of classes in the training data
         word = reader.readLine();
-        if (!word.contains("NumberOfClasses:")) {
+        if (word == null || !word.contains("NumberOfClasses:")) {
             System.err.println("loadDatasetFromFile(String filename) - Failed to find NumberOfClasses!");
-            reader.close();
             return false;
         }
         numClasses = Integer.parseInt(word.split(" ")[1]);
@@ -244,9 +481,8 @@ public class TimeSeriesClassificationData {
 
         //Get the total number of classes in the training data
         word = reader.readLine();
-        if (!word.contains("ClassIDsAndCounters:")) {
+        if (word == null || !word.contains("ClassIDsAndCounters:")) {
             System.err.println("loadDatasetFromFile(String filename) - Failed to find ClassIDsAndCounters!");
-            reader.close();
             return false;
         }
 
@@ -260,9 +496,8 @@ public class TimeSeriesClassificationData {
 
         //Get the UseExternalRanges
         word = reader.readLine();
-        if (!word.contains("UseExternalRanges:")) {
+        if (word == null || !word.contains("UseExternalRanges:")) {
             System.err.println("loadDatasetFromFile(String filename) - Failed to find UseExternalRanges!");
-            reader.close();
             return false;
         }
         if (!word.split(" ")[1].equals("0")) {
@@ -277,64 +512,45 @@ public class TimeSeriesClassificationData {
 
         //Get the main training data
         word = reader.readLine();
-        if (!word.contains("LabelledTimeSeriesTrainingData:")) {
+        if (word == null || !word.contains("LabelledTimeSeriesTrainingData:")) {
             System.err.println("loadDatasetFromFile(String filename) - Failed to find LabelledTimeSeriesTrainingData!");
-            reader.close();
             return false;
         }
+        return true;
+    }
 
-        //Reset the memory
-        data.ensureCapacity(totalNumSamples);
-
-        //Load each of the time series
-        for (int x = 0; x < totalNumSamples; x++) {
-            int classLabel = 0;
-            int timeSeriesLength = 0;
-            word = reader.readLine();
-            if (!word.contains("************TIME_SERIES************")) {
-                System.err.println("loadDatasetFromFile(String filename) - Failed to find TimeSeries Header! ");
-                reader.close();
-                return false;
-            }
-            word = reader.readLine();
-            if (!word.contains("ClassID:")) {
-                System.err.println("loadDatasetFromFile(String filename) - Failed to find ClassID!");
-                reader.close();
-                return false;
-            }
-            classLabel = Integer.parseInt(word.split(" ")[1]);
-            word = reader.readLine();
-            if (!word.contains("TimeSeriesLength:")) {
-                System.err.println("loadDatasetFromFile(String filename) - Failed to find TimeSeriesLength!");
-                reader.close();
-                return false;
-            }
-            timeSeriesLength = Integer.parseInt(word.split(" ")[1]);
-
-            //System.out.println(timeSeriesLength);
-            word = reader.readLine();
-            if (!word.contains("TimeSeriesData: ")) {
-                System.err.println("loadDatasetFromFile(String filename) - Failed to find TimeSeriesData!");
-                reader.close();
-                return false;
-            }
-
-            //Load the time series data
-            MatrixDouble trainingExample = new MatrixDouble(timeSeriesLength, numDimensions);
-            for (int i = 0; i < timeSeriesLength; i++) {
-                word = reader.readLine();
-                String[] strData = word.split(" ");
-                for (int j = 0; j < numDimensions; j++) {
-                    trainingExample.set(Double.parseDouble(strData[j]), i, j);
-                }
-            }
-
-            data.add(new TimeSeriesClassificationSample());
-            data.get(x).setTrainingSample(classLabel, trainingExample);
+    /**
+     * Reads the four header lines of a time series, up to and including the
+     * TimeSeriesData line.
+     *
+     * @param header: receives the class label and the length of the time
+     * series
+     */
+    private boolean readSampleHeader(LineSource reader, int[] header) throws IOException {
+        String word = reader.readLine();
+        if (word == null || !word.contains("************TIME_SERIES************")) {
+            System.err.println("loadDatasetFromFile(String filename) - Failed to find TimeSeries Header! ");
+            return false;
         }
+        word = reader.readLine();
+        if (word == null || !word.contains("ClassID:")) {
+            System.err.println("loadDatasetFromFile(String filename) - Failed to find ClassID!");
+            return false;
+        }
+        header[0] = Integer.parseInt(word.split(" ")[1]);
+        word = reader.readLine();
+        if (word == null || !word.contains("TimeSeriesLength:")) {
+            System.err.println("loadDatasetFromFile(String filename) - Failed to find TimeSeriesLength!");
+            return false;
+        }
+        header[1] = Integer.parseInt(word.split(" ")[1]);
 
-        //System.out.println("In TimeSeries loadDattaSet.\n DataSet: " + this);
-        reader.close();
+        //System.out.println(timeSeriesLength);
+        word = reader.readLine();
+        if (word == null || !word.contains("TimeSeriesData: ")) {
+            System.err.println("loadDatasetFromFile(String filename) - Failed to find TimeSeriesData!");
+            return false;
+        }
         return true;
     }
 
@@ -372,6 +588,8 @@ public class TimeSeriesClassificationData {
     public void clear() {
         totalNumSamples = 0;
         data.clear();
+        classSamples.clear();
+        classSamplesValid = false;
         //classTracker.clear();
     }
 
@@ -422,23 +640,17 @@ public class TimeSeriesClassificationData {
         TimeSeriesClassificationSample newSample = new TimeSeriesClassificationSample(classLabel, trainingSample);
         data.add(newSample);
         totalNumSamples++;
+        if (classSamplesValid) {
+            getOrAddClassSamples(classLabel).add(data.size() - 1);
+        }
 
-        if (classTracker.size() == 0) {
+        int k = getClassTrackerIndex(classLabel);
+        if (k >= 0) {
+            classTracker.get(k).counter++;
+        } else {
             ClassTracker tracker = new ClassTracker(classLabel, 1);
             classTracker.add(tracker);
-        } else {
-            boolean labelFound = false;
-            for (int i = 0; i < classTracker.size(); i++) {
-                if (classLabel == classTracker.get(i).classLabel) {
-                    classTracker.get(i).counter++;
-                    labelFound = true;
-                    break;
-                }
-            }
-            if (!labelFound) {
-                ClassTracker tracker = new ClassTracker(classLabel, 1);
-                classTracker.add(tracker);
-            }
+            classTrackerIndex.put(classLabel, classTracker.size() - 1);
         }
         return true;
     }
@@ -451,14 +663,87 @@ public class TimeSeriesClassificationData {
         return classTracker;
     }
 
+    /**
+     * Gets the position of a class in the class tracker with a hash lookup.
+     *
+     * @param classLabel: the class label to look for
+     * @return the position of the first ClassTracker with that label, or -1 if
+     * there is none
+     */
+    public int getClassTrackerIndex(int classLabel) {
+        Integer k = classTrackerIndex.get(classLabel);
+        if (k == null || k >= classTracker.size() || classTracker.get(k).classLabel != classLabel) {
+            //The tracker was changed from outside or the label is new, so index it again
+            classTrackerIndex.clear();
+            for (int i = classTracker.size() - 1; i >= 0; i--) {
+                classTrackerIndex.put(classTracker.get(i).classLabel, i);
+            }
+            k = classTrackerIndex.get(classLabel);
+        }
+        return k == null ? -1 : k;
+    }
+
+    /**
+     * Gets the number of samples with the given class label.
+     */
+    public int getNumClassSamples(int classLabel) {
+        ClassSamples samples = getClassSamples(classLabel);
+        return samples == null ? 0 : samples.size;
+    }
+
+    /**
+     * Gets the i'th sample of the given class, in the order of the dataset.
+     * The sample is not copied. It is up to the user to ensure that i is
+     * within the range of [0 getNumClassSamples(classLabel)-1]
+     */
+    public TimeSeriesClassificationSample getClassSample(int classLabel, int i) {
+        return data.get(getClassSampleIndex(classLabel, i));
+    }
+
+    /**
+     * Gets the position in the dataset of the i'th sample of the given class.
+     */
+    public int getClassSampleIndex(int classLabel, int i) {
+        ClassSamples samples = getClassSamples(classLabel);
+        if (samples == null || i < 0 || i >= samples.size) {
+            throw new IndexOutOfBoundsException("getClassSampleIndex(int classLabel, int i) - Class " + classLabel + " has no sample " + i + "!");
+        }
+        return samples.positions[i];
+    }
+
+    /**
+     * Gets a new dataset holding the samples of one class. The samples are
+     * shared with this dataset, not copied.
+     */
     public TimeSeriesClassificationData getClassData(int classLabel) {
         TimeSeriesClassificationData classData = new TimeSeriesClassificationData(numDimensions);
-        for (int x = 0; x < totalNumSamples; x++) {
-            if (data.get(x).getClassLabel() == classLabel) {
-                classData.addSample(classLabel, data.get(x).getData());
-            }
+        int numClassSamples = getNumClassSamples(classLabel);
+        classData.data.ensureCapacity(numClassSamples);
+        for (int i = 0; i < numClassSamples; i++) {
+            classData.addSample(classLabel, getClassSample(classLabel, i).getData());
         }
         return classData;
     }
 
+    private ClassSamples getClassSamples(int classLabel) {
+        if (!classSamplesValid) {
+            //The samples were loaded or changed in bulk, index them again
+            classSamples.clear();
+            int numSamples = Math.min(totalNumSamples, data.size());
+            for (int x = 0; x < numSamples; x++) {
+                getOrAddClassSamples(data.get(x).getClassLabel()).add(x);
+            }
+            classSamplesValid = true;
+        }
+        return classSamples.get(classLabel);
+    }
+
+    private ClassSamples getOrAddClassSamples(int classLabel) {
+        ClassSamples samples = classSamples.get(classLabel);
+        if (samples == null) {
+            samples = new ClassSamples();
+            classSamples.put(classLabel, samples);
+        }
+        return samples;
+    }
 }
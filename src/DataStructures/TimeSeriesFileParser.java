@@ -0,0 +1,240 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package DataStructures;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the lines and values of a GRT text file straight from a byte buffer,
+ * usually a memory-mapped file. Lines end with \n, \r or \r\n as for
+ * BufferedReader.readLine, and header lines are decoded with the default
+ * charset as FileReader does.
+ *
+ * The values are parsed without creating a String for each one. A value with
+ * at most 15 significant digits and a decimal exponent within 22 is converted
+ * with one exact multiplication or division, which is correctly rounded and so
+ * gives the same double as Double.parseDouble. Any other token, such as NaN or
+ * a value with more digits, is handed over to Double.parseDouble.
+ *
+ * Only absolute reads are used once a parser has been positioned, and each
+ * thread should use its own parser over a duplicate of the buffer.
+ *
+ * @author Пользователь
+ */
+class TimeSeriesFileParser {
+
+    private static final int MAX_FAST_DIGITS = 15;      //Significant digits always exact in a double
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final ByteBuffer buffer;
+    private final int limit;
+    private final Charset charset = Charset.defaultCharset();
+    private int position;
+
+    TimeSeriesFileParser(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+        this.position = 0;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * Reads the next line, without its line terminator.
+     *
+     * @return the line, or null at the end of the buffer
+     */
+    String readLine() {
+        if (position >= limit) {
+            return null;
+        }
+        int end = lineEnd(position);
+        byte[] bytes = new byte[end - position];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        position = nextLine(end);
+        return new String(bytes, charset);
+    }
+
+    /**
+     * Moves past numLines lines.
+     *
+     * @return false if the buffer ends before that
+     */
+    boolean skipLines(int numLines) {
+        for (int i = 0; i < numLines; i++) {
+            if (position >= limit) {
+                return false;
+            }
+            position = nextLine(lineEnd(position));
+        }
+        return true;
+    }
+
+    /**
+     * Parses numRows lines starting at start into dest, row-major. Each line
+     * holds numCols values separated by single spaces, as read by
+     * loadDatasetFromFile, and anything after them is ignored.
+     *
+     * @return false if a line is missing or has fewer than numCols values
+     * @throws NumberFormatException if a value is not a number
+     */
+    boolean parseRows(int start, int numRows, int numCols, double[] dest) {
+        int pos = start;
+        int index = 0;
+        for (int i = 0; i < numRows; i++) {
+            if (pos >= limit) {
+                return false;
+            }
+            int end = lineEnd(pos);
+            for (int j = 0; j < numCols; j++) {
+                if (pos > end) {
+                    return false;
+                }
+                int tokenEnd = pos;
+                while (tokenEnd < end && buffer.get(tokenEnd) != ' ') {
+                    tokenEnd++;
+                }
+                dest[index++] = parseDouble(pos, tokenEnd);
+                pos = tokenEnd + 1;
+            }
+            pos = nextLine(end);
+        }
+        return true;
+    }
+
+    private int lineEnd(int pos) {
+        while (pos < limit) {
+            byte c = buffer.get(pos);
+            if (c == '\n' || c == '\r') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private int nextLine(int end) {
+        if (end < limit && buffer.get(end) == '\r') {
+            end++;
+            if (end < limit && buffer.get(end) == '\n') {
+                end++;
+            }
+        } else if (end < limit) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Parses the token in [start end), giving the same result as
+     * Double.parseDouble on it.
+     */
+    private double parseDouble(int start, int end) {
+        //Double.parseDouble ignores leading and trailing whitespace
+        int p = start;
+        int e = end;
+        while (p < e && buffer.get(p) <= ' ') {
+            p++;
+        }
+        while (e > p && buffer.get(e - 1) <= ' ') {
+            e--;
+        }
+
+        boolean negative = false;
+        if (p < e && (buffer.get(p) == '-' || buffer.get(p) == '+')) {
+            negative = buffer.get(p) == '-';
+            p++;
+        }
+
+        long mantissa = 0;
+        int numDigits = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        byte c;
+        while (p < e && (c = buffer.get(p)) >= '0' && c <= '9') {
+            if (mantissa != 0 || c != '0') {
+                if (numDigits == MAX_FAST_DIGITS) {
+                    return parseSlow(start, end);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                numDigits++;
+            }
+            hasDigits = true;
+            p++;
+        }
+        if (p < e && buffer.get(p) == '.') {
+            p++;
+            while (p < e && (c = buffer.get(p)) >= '0' && c <= '9') {
+                if (mantissa != 0 || c != '0') {
+                    if (numDigits == MAX_FAST_DIGITS) {
+                        return parseSlow(start, end);
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                    numDigits++;
+                }
+                exponent--;
+                hasDigits = true;
+                p++;
+            }
+        }
+        if (!hasDigits) {
+            return parseSlow(start, end);
+        }
+
+        if (p < e && (buffer.get(p) == 'e' || buffer.get(p) == 'E')) {
+            p++;
+            boolean negativeExponent = false;
+            if (p < e && (buffer.get(p) == '-' || buffer.get(p) == '+')) {
+                negativeExponent = buffer.get(p) == '-';
+                p++;
+            }
+            int value = 0;
+            boolean hasExponentDigits = false;
+            while (p < e && (c = buffer.get(p)) >= '0' && c <= '9') {
+                if (value > 10000) {
+                    return parseSlow(start, end);
+                }
+                value = value * 10 + (c - '0');
+                hasExponentDigits = true;
+                p++;
+            }
+            if (!hasExponentDigits) {
+                return parseSlow(start, end);
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (p != e) {
+            //Trailing characters, such as a d or f suffix, or not a number at all
+            return parseSlow(start, end);
+        }
+
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (exponent < -22 || exponent > 22) {
+            return parseSlow(start, end);
+        }
+        double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        return negative ? -value : value;
+    }
+
+    private double parseSlow(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return Double.parseDouble(new String(bytes, StandardCharsets.ISO_8859_1));
+    }
+}
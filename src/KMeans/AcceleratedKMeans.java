@@ -0,0 +1,274 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+import Util.MatrixDouble;
+import java.util.ArrayList;
+
+/**
+ * A KMeans model that uses the triangle inequality to skip most of the
+ * distance evaluations of the E step (Hamerly's algorithm). Each sample keeps
+ * an upper bound on the distance to its cluster and a lower bound on the
+ * distance to every other cluster. The bounds are moved by how far the
+ * clusters move in each M step, and a sample is only compared against all the
+ * clusters when the bounds can no longer prove that its cluster is still the
+ * closest one.
+ *
+ * A sample is only skipped when its cluster is strictly closer than all the
+ * others, and everything else goes through the same code as KMeans, so the
+ * training gives the same clusters, in the same number of epochs, as the
+ * Lloyd loop in trainModel. The bounds pay off when there are many clusters
+ * and the assignments have mostly settled, which is where the Lloyd loop
+ * spends most of its time.
+ *
+ * @author Пользователь
+ */
+class AcceleratedKMeans extends KMeans {
+
+    private static final long serialVersionUID = -4650005439150953544L;
+
+    //Relative margin on the bounds, so rounding errors in the bounds can never skip a sample whose closest cluster changed
+    private static final double BOUND_TOLERANCE = 1.0e-10;
+
+    protected ArrayList<Long> distanceEvaluationsTracker = new ArrayList<Long>();   ///<Number of sample to cluster distances computed in each epoch
+    protected ArrayList<Long> skippedDistancesTracker = new ArrayList<Long>();      ///<Number of sample to cluster distances skipped in each epoch
+
+    private double[] upper;             //Upper bound on the distance of each sample to its cluster
+    private double[] lower;             //Lower bound on the distance of each sample to every other cluster
+    private double[] separation;        //Half the distance of each cluster to its closest other cluster
+    private double[] previousClusters;  //The clusters before the M step, stored row-major
+    private double[] movement;          //How far each cluster moved in the last M step
+    private boolean boundsValid;
+    private boolean upperBoundsExact;   //True when calculateTheta has just set the upper bounds to the exact distances
+
+    public AcceleratedKMeans(int numClusters, int minNumEpochs, int maxNumEpochs, double minChange, boolean computeTheta) {
+        super(numClusters, minNumEpochs, maxNumEpochs, minChange, computeTheta);
+    }
+
+    public AcceleratedKMeans() {
+    }
+
+    /**
+     * The bounds are updated sample by sample in the sequential loop, so this
+     * model always trains on a single thread.
+     */
+    @Override
+    public void setNumThreads(int numThreads) {
+        if (numThreads > 1) {
+            System.err.println("setNumThreads(int numThreads) - AcceleratedKMeans always trains on a single thread!");
+        }
+    }
+
+    @Override
+    KMeans newInstance() {
+        return new AcceleratedKMeans();
+    }
+
+    /**
+     * Returns the number of sample to cluster distances computed in each epoch
+     * of the last training.
+     */
+    public ArrayList<Long> getDistanceEvaluations() {
+        return distanceEvaluationsTracker;
+    }
+
+    /**
+     * Returns the number of sample to cluster distances skipped in each epoch
+     * of the last training, compared to the numSamples*numClusters distances
+     * of the Lloyd loop.
+     */
+    public ArrayList<Long> getSkippedDistances() {
+        return skippedDistancesTracker;
+    }
+
+    @Override
+    public boolean trainModel(MatrixDouble data) {
+        upper = new double[numTrainingSamples];
+        lower = new double[numTrainingSamples];
+        separation = new double[numClusters];
+        previousClusters = new double[numClusters * numInputDimensions];
+        movement = new double[numClusters];
+        boundsValid = false;
+        upperBoundsExact = false;
+        distanceEvaluationsTracker.clear();
+        skippedDistancesTracker.clear();
+
+        return super.trainModel(data);
+    }
+
+    @Override
+    int estep(MatrixDouble data) {
+        int k, m;
+        long numEvaluations = 0;
+        nchg = 0;
+
+        //Reset Count
+        for (k = 0; k < numClusters; k++) {
+            count[k] = 0;
+        }
+
+        if (boundsValid) {
+            updateSeparation();
+        }
+
+        for (m = 0; m < numTrainingSamples; m++) {
+            if (boundsValid) {
+                int a = assign[m];
+                double bound = Math.max(separation[a], lower[m]) * (1.0 - BOUND_TOLERANCE);
+
+                //Tighten the upper bound, then check again before searching every cluster
+                if (upper[m] >= bound && !upperBoundsExact) {
+                    upper[m] = Math.sqrt(distance(data, m, a));
+                    numEvaluations++;
+                }
+                if (upper[m] < bound) {
+                    count[a]++;
+                    continue;
+                }
+            }
+            numEvaluations += numClusters;
+            searchClusters(data, m);
+            count[assign[m]]++;
+        }
+        boundsValid = true;
+        upperBoundsExact = false;
+
+        long numSkipped = (long) numTrainingSamples * numClusters - numEvaluations;
+        distanceEvaluationsTracker.add(numEvaluations);
+        skippedDistancesTracker.add(numSkipped);
+        System.out.println(" Distance evaluations: " + numEvaluations + " Skipped: " + numSkipped);
+
+        return nchg;
+    }
+
+    @Override
+    void mstep(MatrixDouble data) {
+        int k, n, m;
+        for (k = 0; k < numClusters; k++) {
+            for (n = 0; n < numInputDimensions; n++) {
+                previousClusters[k * numInputDimensions + n] = clusters.get(k, n);
+            }
+        }
+
+        super.mstep(data);
+
+        //Find how far each cluster moved, and the two largest moves
+        double maxMovement = 0;
+        double secondMaxMovement = 0;
+        int maxCluster = 0;
+        for (k = 0; k < numClusters; k++) {
+            double sum = 0;
+            for (n = 0; n < numInputDimensions; n++) {
+                double diff = clusters.get(k, n) - previousClusters[k * numInputDimensions + n];
+                sum += diff * diff;
+            }
+            movement[k] = Math.sqrt(sum);
+            if (movement[k] > maxMovement) {
+                secondMaxMovement = maxMovement;
+                maxMovement = movement[k];
+                maxCluster = k;
+            } else if (movement[k] > secondMaxMovement) {
+                secondMaxMovement = movement[k];
+            }
+        }
+
+        //Move the bounds by the same amount
+        for (m = 0; m < numTrainingSamples; m++) {
+            int a = assign[m];
+            upper[m] += movement[a];
+            lower[m] -= a == maxCluster ? secondMaxMovement : maxMovement;
+        }
+    }
+
+    /**
+     * Computes theta exactly as KMeans does. The distance of each sample to its
+     * cluster is computed anyway, so it also becomes the new upper bound.
+     */
+    @Override
+    double calculateTheta(MatrixDouble data) {
+        double theta = 0;
+        double sum = 0;
+        int m, n, k = 0;
+        for (m = 0; m < numTrainingSamples; m++) {
+            k = assign[m];
+            sum = 0;
+            for (n = 0; n < numInputDimensions; n++) {
+                sum += Math.pow(clusters.get(k, n) - data.get(m, n), 2);
+            }
+            upper[m] = Math.sqrt(sum);
+            theta += upper[m];
+        }
+        theta /= numTrainingSamples;
+        upperBoundsExact = true;
+
+        return theta;
+    }
+
+    /**
+     * Compares sample m with every cluster, as in KMeans.estep, and resets its
+     * bounds.
+     */
+    private void searchClusters(MatrixDouble data, int m) {
+        double dmin = 9.99e+99; //Set dmin to a really big value
+        double dsecond = 9.99e+99;
+        int kmin = 0;
+        for (int k = 0; k < numClusters; k++) {
+            double d = distance(data, m, k);
+            if (d <= dmin) {
+                dsecond = dmin;
+                dmin = d;
+                kmin = k;
+            } else if (d < dsecond) {
+                dsecond = d;
+            }
+        }
+        if (kmin != assign[m]) {
+            nchg++;
+            assign[m] = kmin;
+        }
+        upper[m] = Math.sqrt(dmin);
+        lower[m] = Math.sqrt(dsecond);
+    }
+
+    /**
+     * Sets the separation of each cluster to half the distance to its closest
+     * other cluster. A sample closer to its cluster than that cannot be closer
+     * to any other cluster.
+     */
+    private void updateSeparation() {
+        for (int k = 0; k < numClusters; k++) {
+            separation[k] = Double.MAX_VALUE;
+        }
+        for (int k = 0; k < numClusters; k++) {
+            for (int j = k + 1; j < numClusters; j++) {
+                double sum = 0;
+                for (int n = 0; n < numInputDimensions; n++) {
+                    double diff = clusters.get(k, n) - clusters.get(j, n);
+                    sum += diff * diff;
+                }
+                double d = 0.5 * Math.sqrt(sum);
+                if (d < separation[k]) {
+                    separation[k] = d;
+                }
+                if (d < separation[j]) {
+                    separation[j] = d;
+                }
+            }
+        }
+    }
+
+    /**
+     * The squared Euclidean distance between sample m and cluster k, computed
+     * as in KMeans.estep.
+     */
+    private double distance(MatrixDouble data, int m, int k) {
+        double d = 0.0;
+        for (int n = 0; n < numInputDimensions; n++) {
+            d += Math.pow(data.get(m, n) - clusters.get(k, n), 2);
+        }
+        return d;
+    }
+}
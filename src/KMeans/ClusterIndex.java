@@ -0,0 +1,22 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+/**
+ * Finds the cluster closest to a frame. Every implementation must give exactly
+ * the same answer as the brute-force search in QuantizerModel, including the
+ * tie break to the lowest index, and must be safe to use from several threads.
+ *
+ * @author Пользователь
+ */
+interface ClusterIndex {
+
+    /**
+     * Returns the index of the cluster closest to the frame starting at
+     * frames[offset].
+     */
+    int nearestCluster(double[] frames, int offset);
+}
@@ -0,0 +1,224 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+/**
+ * A KD-tree over a set of clusters, for exact nearest cluster queries in
+ * roughly logarithmic time when there are many clusters. Each node splits its
+ * clusters at the median of the dimension with the largest spread, and a
+ * subtree is only searched if the splitting plane is not farther than the best
+ * cluster found so far.
+ *
+ * The distances are computed exactly as in the brute-force searches, and the
+ * distance to a splitting plane is never larger than the distance to any
+ * cluster behind it, even after rounding, so the queries give exactly the same
+ * answer as a linear scan, ties included. Building the tree only sorts the
+ * clusters, which is cheap next to a pass over the samples, so KMeans simply
+ * rebuilds it in place after each M step.
+ *
+ * @author Пользователь
+ */
+class ClusterKDTree implements ClusterIndex {
+
+    private static final int LEAF_SIZE = 4;    //Maximum number of clusters in a leaf
+
+    private int numClusters;
+    private int numDimensions;
+    private double[] centroids;     //The clusters, stored row-major as centroids[k*numDimensions+n]
+    private int[] order;            //The cluster indexes, each node owns a contiguous range of it
+    private int[] nodeStart;        //First position of each node in order
+    private int[] nodeEnd;          //Last position (exclusive) of each node in order
+    private int[] nodeDimension;    //Splitting dimension of each node, -1 for a leaf
+    private double[] nodeSplit;     //Splitting value of each node
+    private int[] nodeLeft;         //Left child of each node, holding the clusters not above the split
+    private int[] nodeRight;        //Right child of each node, holding the clusters not below the split
+    private int numNodes;
+    private int depth;
+
+    private final ThreadLocal<int[]> stack = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[0];
+        }
+    };
+    private final ThreadLocal<double[]> stackBound = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[0];
+        }
+    };
+
+    ClusterKDTree(double[] centroids, int numClusters, int numDimensions) {
+        rebuild(centroids, numClusters, numDimensions);
+    }
+
+    ClusterKDTree(QuantizerModel model) {
+        this(model.centroids, model.numClusters, model.numDimensions);
+    }
+
+    /**
+     * Rebuilds the tree over new clusters, reusing the node buffers. The tree
+     * keeps a reference to centroids, so it must not change until the next
+     * rebuild.
+     */
+    final void rebuild(double[] centroids, int numClusters, int numDimensions) {
+        this.centroids = centroids;
+        this.numDimensions = numDimensions;
+        if (this.numClusters != numClusters || order == null) {
+            this.numClusters = numClusters;
+            int maxNodes = 2 * Math.max(1, numClusters);
+            order = new int[numClusters];
+            nodeStart = new int[maxNodes];
+            nodeEnd = new int[maxNodes];
+            nodeDimension = new int[maxNodes];
+            nodeSplit = new double[maxNodes];
+            nodeLeft = new int[maxNodes];
+            nodeRight = new int[maxNodes];
+        }
+        for (int k = 0; k < numClusters; k++) {
+            order[k] = k;
+        }
+        numNodes = 0;
+        depth = 0;
+        buildNode(0, numClusters, 1);
+    }
+
+    private int buildNode(int start, int end, int level) {
+        final int node = numNodes++;
+        nodeStart[node] = start;
+        nodeEnd[node] = end;
+        nodeDimension[node] = -1;
+        if (level > depth) {
+            depth = level;
+        }
+        if (end - start <= LEAF_SIZE) {
+            return node;
+        }
+
+        //Split on the dimension with the largest spread
+        int dimension = 0;
+        double maxSpread = -1;
+        for (int n = 0; n < numDimensions; n++) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int i = start; i < end; i++) {
+                double v = centroids[order[i] * numDimensions + n];
+                if (v < min) {
+                    min = v;
+                }
+                if (v > max) {
+                    max = v;
+                }
+            }
+            if (max - min > maxSpread) {
+                maxSpread = max - min;
+                dimension = n;
+            }
+        }
+        if (!(maxSpread > 0)) {
+            //All the clusters are the same point (or NaN), keep them in one leaf
+            return node;
+        }
+
+        //Sort the node by that dimension and split at the median
+        sort(start, end, dimension);
+        final int mid = (start + end) / 2;
+        nodeDimension[node] = dimension;
+        nodeSplit[node] = centroids[order[mid] * numDimensions + dimension];
+        nodeLeft[node] = buildNode(start, mid, level + 1);
+        nodeRight[node] = buildNode(mid, end, level + 1);
+        return node;
+    }
+
+    /**
+     * Insertion sort of order[start..end) by the value in the given dimension.
+     * There are few clusters next to the number of samples each rebuild is
+     * used for, so a simple sort is enough.
+     */
+    private void sort(int start, int end, int dimension) {
+        for (int i = start + 1; i < end; i++) {
+            int k = order[i];
+            double v = centroids[k * numDimensions + dimension];
+            int j = i - 1;
+            while (j >= start && centroids[order[j] * numDimensions + dimension] > v) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = k;
+        }
+    }
+
+    /**
+     * Same as QuantizerModel.nearestCluster: ties go to the lowest index.
+     */
+    @Override
+    public int nearestCluster(double[] frames, int offset) {
+        int k = nearest(frames, offset, Double.MAX_VALUE, false);
+        return k >= 0 ? k : 0;
+    }
+
+    /**
+     * Finds the cluster closest to the frame at frames[offset] among those
+     * closer than maxDist (squared), or at that distance too if lastOnTie.
+     *
+     * @param lastOnTie: if true ties go to the highest index, as in
+     * KMeans.estep, otherwise to the lowest index, as in the quantizer
+     * @return the closest cluster, or -1 if none is close enough
+     */
+    int nearest(double[] frames, int offset, double maxDist, boolean lastOnTie) {
+        final int D = numDimensions;
+        int[] nodes = stack.get();
+        double[] bounds = stackBound.get();
+        if (nodes.length < depth + 1) {
+            nodes = new int[depth + 1];
+            bounds = new double[depth + 1];
+            stack.set(nodes);
+            stackBound.set(bounds);
+        }
+
+        double bestDist = maxDist;
+        int best = -1;
+        int size = 0;
+        nodes[size] = 0;
+        bounds[size++] = 0;
+
+        while (size > 0) {
+            size--;
+            final int node = nodes[size];
+            if (bounds[size] > bestDist) {
+                continue;
+            }
+
+            final int dimension = nodeDimension[node];
+            if (dimension < 0) {
+                for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+                    final int k = order[i];
+                    final int base = k * D;
+                    double d = 0.0;
+                    for (int n = 0; n < D; n++) {
+                        double diff = frames[offset + n] - centroids[base + n];
+                        d += diff * diff;
+                    }
+                    if (d < bestDist || (d == bestDist && (lastOnTie ? k > best : (best >= 0 && k < best)))) {
+                        bestDist = d;
+                        best = k;
+                    }
+                }
+                continue;
+            }
+
+            //Search the side of the frame first, the other side only if the plane is close enough
+            double diff = frames[offset + dimension] - nodeSplit[node];
+            int near = diff < 0 ? nodeLeft[node] : nodeRight[node];
+            int far = diff < 0 ? nodeRight[node] : nodeLeft[node];
+            nodes[size] = far;
+            bounds[size++] = diff * diff;
+            nodes[size] = near;
+            bounds[size++] = 0;
+        }
+        return best;
+    }
+}
@@ -9,7 +9,13 @@ import Util.MatrixDouble;
 import Util.MinMax;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +46,17 @@ class KMeans implements Serializable{
     protected boolean converged;
     protected int numInputDimensions;
     protected int numTrainingIterationsToConverge;
+    protected int numThreads = 1;                    ///<Number of threads used by trainModel, 1 runs the sequential loop
+    protected int numRestarts = 1;                   ///<Number of times train is run from different starting clusters
+    protected KMeansSeedingMethod seedingMethod = KMeansSeedingMethod.RANDOM;
+    protected Random random = new Random();          ///<The random generator used to pick the starting clusters
+    protected boolean useClusterIndex = false;       ///<If true the E step finds the closest clusters with a KD-tree
+    private transient ClusterKDTree clusterIndex;    //The KD-tree used by the E step, rebuilt after each M step
+
+    //The parallel training splits the samples into blocks of at least MIN_BLOCK_SIZE samples, and never more than MAX_NUM_BLOCKS blocks.
+    //The blocks only depend on the number of samples, so the result does not depend on the number of threads.
+    private static final int MIN_BLOCK_SIZE = 4096;
+    private static final int MAX_NUM_BLOCKS = 256;
 
     public KMeans(int numClusters, int minNumEpochs, int maxNumEpochs, double minChange, boolean computeTheta) {
         this.numClusters = numClusters;
@@ -82,10 +99,67 @@ class KMeans implements Serializable{
         this.minChange = minChange;
     }
 
+    /**
+     * Sets the number of threads used by trainModel. With more than one thread
+     * each epoch runs as a single parallel pass over the samples, see
+     * trainModelParallel.
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * If true, the E step finds the closest cluster of each sample with a
+     * KD-tree over the clusters, rebuilt after each M step, instead of
+     * comparing the sample with every cluster. The assignments are exactly the
+     * same, and with many clusters the search is much faster.
+     */
+    public void setUseClusterIndex(boolean useClusterIndex) {
+        this.useClusterIndex = useClusterIndex;
+    }
+
+    public void setSeedingMethod(KMeansSeedingMethod seedingMethod) {
+        this.seedingMethod = seedingMethod;
+    }
+
+    /**
+     * Sets the number of times train runs the training from different starting
+     * clusters. The restart with the lowest theta is kept. With more than one
+     * thread the restarts run in parallel.
+     */
+    public void setNumRestarts(int numRestarts) {
+        this.numRestarts = numRestarts;
+    }
+
+    /**
+     * Sets the seed used to pick the starting clusters, so that training on the
+     * same data gives the same clusters.
+     */
+    public void setRandomSeed(long randomSeed) {
+        random = new Random(randomSeed);
+    }
+
     MatrixDouble getClusters() {
         return clusters;
     }
 
+    /**
+     * Returns the number of blocks the parallel code splits numSamples samples
+     * into. The blocks have at least MIN_BLOCK_SIZE samples and only depend on
+     * the number of samples, so the results do not depend on the number of
+     * threads.
+     */
+    static int getNumBlocks(int numSamples) {
+        return Math.min(MAX_NUM_BLOCKS, Math.max(1, (numSamples + MIN_BLOCK_SIZE - 1) / MIN_BLOCK_SIZE));
+    }
+
+    /**
+     * Creates an untrained model of the same type, used for the restarts.
+     */
+    KMeans newInstance() {
+        return new KMeans();
+    }
+
     boolean train(MatrixDouble data) {
         trained = false;
 
@@ -106,46 +180,127 @@ class KMeans implements Serializable{
 //    System.out.println( "numTrainingSamples" + numTrainingSamples );
 //    System.out.println( "numInputDimensions" + numInputDimensions );
   
+        if (numRestarts <= 1) {
+            return trainFromSeed(data, random, numThreads);
+        }
+        return trainRestarts(data);
+    }
+
+    /**
+     * Picks the starting clusters with the seeding method and trains the model
+     * from them.
+     */
+    private boolean trainFromSeed(MatrixDouble data, Random random, int numThreads) {
         clusters.resize(numClusters, numInputDimensions);
         assign = new int[numTrainingSamples];
         count = new int[numClusters];
 
-        //Randomly pick k data points as the starting clusters
-        int[] randIndexs = new int[numTrainingSamples];
-        for (int i = 0; i < numTrainingSamples; i++) {
-            randIndexs[i] = i;
+        KMeansSeeding seeding = new KMeansSeeding(data, numClusters, random);
+        if (!seeding.seed(seedingMethod == null ? KMeansSeedingMethod.RANDOM : seedingMethod, clusters, numThreads)) {
+            System.err.println("train_(MatrixDouble &data) - Failed to pick the starting clusters!");
+            return false;
         }
 
-        Random rand = new Random();
-
-        for (int i = 0; i < numTrainingSamples; i++) {
-            int change = i + rand.nextInt(numTrainingSamples - i);
+        return trainModel(data);
+    }
 
-            int temp = randIndexs[i];
-            randIndexs[i] = randIndexs[change];
-            randIndexs[change] = temp;
+    /**
+     * Trains numRestarts models, each from its own starting clusters, and keeps
+     * the one with the lowest theta. The seed of each restart is drawn from
+     * random up front, so the result does not depend on the number of threads.
+     */
+    private boolean trainRestarts(final MatrixDouble data) {
+        final KMeans[] candidates = new KMeans[numRestarts];
+        final long[] seeds = new long[numRestarts];
+        final int numWorkers = Math.min(numThreads, numRestarts);
+        for (int r = 0; r < numRestarts; r++) {
+            seeds[r] = random.nextLong();
+            KMeans candidate = newInstance();
+            candidate.numClusters = numClusters;
+            candidate.minNumEpochs = minNumEpochs;
+            candidate.maxNumEpochs = maxNumEpochs;
+            candidate.minChange = minChange;
+            candidate.seedingMethod = seedingMethod;
+            candidate.computeTheta = computeTheta;
+            candidate.useScaling = useScaling;
+            candidate.useClusterIndex = useClusterIndex;
+            candidate.numTrainingSamples = numTrainingSamples;
+            candidate.numInputDimensions = numInputDimensions;
+            candidates[r] = candidate;
         }
 
-        //Copy the clusters
-        for (int k = 0; k < numClusters; k++) {
-            for (int j = 0; j < numInputDimensions; j++) {
-
-                double val = data.get(randIndexs[k], j);
-                clusters.set(val, k, j);
-            }
+        //The restarts share the threads, so each one runs on a single thread if there is more than one worker
+        final int threadsPerRestart = numWorkers > 1 ? 1 : numThreads;
+        final double[] thetas = new double[numRestarts];
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(numRestarts);
+        for (int r = 0; r < numRestarts; r++) {
+            final int restart = r;
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    KMeans candidate = candidates[restart];
+                    candidate.numThreads = threadsPerRestart;
+                    if (!candidate.trainFromSeed(data, new Random(seeds[restart]), threadsPerRestart)) {
+                        return false;
+                    }
+                    thetas[restart] = candidate.computeTheta ? candidate.finalTheta : candidate.calculateTheta(data);
+                    return true;
+                }
+            });
         }
-        
-//        /* DEBUG! */
 
+        ExecutorService executor = numWorkers > 1 ? Executors.newFixedThreadPool(numWorkers) : null;
         try {
-            clusters.loadDataTxt("clusters.txt");
+            if (executor == null) {
+                for (Callable<Boolean> task : tasks) {
+                    if (!task.call()) {
+                        return false;
+                    }
+                }
+            } else {
+                List<Future<Boolean>> results = executor.invokeAll(tasks);
+                for (int r = 0; r < numRestarts; r++) {
+                    if (!results.get(r).get()) {
+                        return false;
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.err.println("train_(MatrixDouble &data) - Interrupted while training the restarts!");
+            return false;
+        } catch (ExecutionException ex) {
+            System.err.println("train_(MatrixDouble &data) - Failed to train a restart! " + ex.getCause());
+            return false;
         } catch (Exception ex) {
-            System.err.println(ex);
+            System.err.println("train_(MatrixDouble &data) - Failed to train a restart! " + ex);
+            return false;
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
         }
-        System.out.println("\nClusters:");
-        clusters.print();
-        
-        return trainModel(data);
+
+        //Keep the restart with the lowest theta
+        int best = 0;
+        for (int r = 1; r < numRestarts; r++) {
+            if (thetas[r] < thetas[best]) {
+                best = r;
+            }
+        }
+        System.out.println("Kept restart " + (best + 1) + "/" + numRestarts + " with a theta value of: " + thetas[best]);
+
+        KMeans model = candidates[best];
+        clusters = model.clusters;
+        assign = model.assign;
+        count = model.count;
+        ranges = model.ranges;
+        thetaTracker = model.thetaTracker;
+        finalTheta = model.finalTheta;
+        converged = model.converged;
+        numTrainingIterationsToConverge = model.numTrainingIterationsToConverge;
+        trained = model.trained;
+        return true;
     }
 
     /**
@@ -203,6 +358,10 @@ class KMeans implements Serializable{
             count[k] = 0;
         }
 
+        if (numThreads > 1) {
+            return trainModelParallel(data);
+        }
+
         //Run the training loop
 
         while (keepTraining) {
@@ -227,18 +386,7 @@ class KMeans implements Serializable{
             }
 
             //Check convergance
-            if (numChanged == 0 && currentIter > minNumEpochs) {
-                converged = true;
-                keepTraining = false;
-            }
-            if (currentIter >= maxNumEpochs) {
-                keepTraining = false;
-            }
-            
-            if (Math.abs(delta) < minChange && computeTheta && currentIter > minNumEpochs) {
-                converged = true;
-                keepTraining = false;
-            }
+            keepTraining = checkConvergence(currentIter, numChanged, delta);
             if (computeTheta) {
                 thetaTracker.add(theta);
             }
@@ -256,6 +404,253 @@ class KMeans implements Serializable{
         return true;
     }
 
+    /**
+     * Checks if the training loop should stop after an epoch, setting converged
+     * if it stopped because the model converged.
+     *
+     * @return returns true if the training should continue
+     */
+    private boolean checkConvergence(int currentIter, int numChanged, double delta) {
+        boolean keepTraining = true;
+        if (numChanged == 0 && currentIter > minNumEpochs) {
+            converged = true;
+            keepTraining = false;
+        }
+        if (currentIter >= maxNumEpochs) {
+            keepTraining = false;
+        }
+
+        if (Math.abs(delta) < minChange && computeTheta && currentIter > minNumEpochs) {
+            converged = true;
+            keepTraining = false;
+        }
+        return keepTraining;
+    }
+
+    /**
+     * The parallel version of the training loop in trainModel. Each epoch is a
+     * single pass over the samples that assigns them to their closest cluster
+     * and accumulates the sums and counts of the M step, instead of the three
+     * passes of estep, mstep and calculateTheta.
+     *
+     * Theta depends on the clusters computed by the M step, so it is computed
+     * in the next pass: the distance of each sample to the cluster it is
+     * currently assigned to is exactly the term calculateTheta would add. The
+     * next assignment is only kept if the epoch did not stop the training, so
+     * the loop ends with the same clusters and assignments as the sequential
+     * one.
+     *
+     * The samples are split into blocks, each with its own partial statistics,
+     * and the partials are added in block order. The blocks do not depend on
+     * the number of threads, so neither does the result. With a single block
+     * the sums are added in the same order as in mstep and calculateTheta, and
+     * the result is identical to the sequential loop. With several blocks it
+     * can only differ in the last bits of the sums.
+     */
+    private boolean trainModelParallel(final MatrixDouble data) {
+        final int numBlocks = getNumBlocks(numTrainingSamples);
+        final KMeansStatistics[] partials = new KMeansStatistics[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            partials[b] = new KMeansStatistics(numClusters, numInputDimensions);
+        }
+        KMeansStatistics stats = new KMeansStatistics(numClusters, numInputDimensions);
+        double[] centroids = new double[numClusters * numInputDimensions];
+        int[] nextAssign = new int[numTrainingSamples];
+
+        int currentIter = 0;
+        int numChanged = 0;
+        boolean keepTraining = true;
+        double theta = 0;
+        double lastTheta = 0;
+        double delta = 0;
+        double startTime = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, numBlocks));
+        try {
+            //The first pass only assigns the samples, as there is no theta to compute yet
+            if (!parallelStep(data, centroids, nextAssign, false, partials, stats, executor)) {
+                return false;
+            }
+
+            while (keepTraining) {
+                //Keep the assignment and compute the new clusters
+                int[] temp = assign;
+                assign = nextAssign;
+                nextAssign = temp;
+                numChanged = stats.numChanged;
+                updateClusters(stats);
+                currentIter++;
+
+                //Compute theta, along with the assignment of the next epoch
+                if (computeTheta) {
+                    if (!parallelStep(data, centroids, nextAssign, true, partials, stats, executor)) {
+                        return false;
+                    }
+                    theta = stats.theta / numTrainingSamples;
+                    delta = lastTheta - theta;
+                    lastTheta = theta;
+                } else {
+                    theta = delta = 0;
+                }
+
+                //Check convergance
+                keepTraining = checkConvergence(currentIter, numChanged, delta);
+                if (computeTheta) {
+                    thetaTracker.add(theta);
+                }
+                System.out.println("Epoch: " + currentIter + "/" + maxNumEpochs);
+                System.out.println(" Epoch time: " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+                System.out.println(" Theta: " + theta + " Delta: " + delta);
+                startTime = System.currentTimeMillis();
+
+                if (keepTraining && !computeTheta) {
+                    if (!parallelStep(data, centroids, nextAssign, false, partials, stats, executor)) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        System.out.println("Model Trained at epoch: " + currentIter + " with a theta value of: " + theta
+        );
+
+        finalTheta = theta;
+        numTrainingIterationsToConverge = currentIter;
+        trained = true;
+
+        return true;
+    }
+
+    /**
+     * Runs one parallel pass over the samples, writing the closest cluster of
+     * each sample to nextAssign and the reduced statistics to stats. If
+     * withTheta is true it also sums the distances of the samples to the
+     * clusters they are currently assigned to.
+     */
+    private boolean parallelStep(final MatrixDouble data, final double[] centroids, final int[] nextAssign, final boolean withTheta, final KMeansStatistics[] partials, KMeansStatistics stats, ExecutorService executor) {
+        final int numBlocks = partials.length;
+        final int[] currentAssign = assign;
+
+        //Copy the clusters into a flat buffer so the inner loops do not go through the matrix
+        for (int k = 0; k < numClusters; k++) {
+            for (int n = 0; n < numInputDimensions; n++) {
+                centroids[k * numInputDimensions + n] = clusters.get(k, n);
+            }
+        }
+        final ClusterKDTree tree = useClusterIndex ? new ClusterKDTree(centroids, numClusters, numInputDimensions) : null;
+
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(numBlocks);
+        for (int b = 0; b < numBlocks; b++) {
+            final int block = b;
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    int start = (int) ((long) numTrainingSamples * block / numBlocks);
+                    int end = (int) ((long) numTrainingSamples * (block + 1) / numBlocks);
+                    accumulateBlock(data, centroids, tree, currentAssign, nextAssign, withTheta, start, end, partials[block]);
+                    return true;
+                }
+            });
+        }
+
+        try {
+            List<Future<Boolean>> results = executor.invokeAll(tasks);
+            stats.clear();
+            for (int b = 0; b < numBlocks; b++) {
+                results.get(b).get();
+                stats.add(partials[b]);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.err.println("parallelStep(MatrixDouble data) - Interrupted while assigning the samples!");
+            return false;
+        } catch (ExecutionException ex) {
+            System.err.println("parallelStep(MatrixDouble data) - Failed to assign the samples! " + ex.getCause());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Assigns the samples in [start end) to their closest cluster and
+     * accumulates their statistics in stats. This does the work of estep,
+     * mstep and calculateTheta for one block of samples.
+     */
+    private void accumulateBlock(MatrixDouble data, double[] centroids, ClusterKDTree tree, int[] currentAssign, int[] nextAssign, boolean withTheta, int start, int end, KMeansStatistics stats) {
+        final int K = numClusters;
+        final int D = numInputDimensions;
+        final double[] sums = stats.sums;
+        final double[] frame = tree != null ? new double[D] : null;
+        int k, m, n, kmin;
+        double dmin, d, diff;
+        kmin = 0;
+
+        stats.clear();
+        for (m = start; m < end; m++) {
+            final int current = currentAssign[m];
+
+            //Distance to the current cluster, this is the term of theta for this sample
+            if (withTheta) {
+                d = 0.0;
+                for (n = 0; n < D; n++) {
+                    diff = centroids[current * D + n] - data.get(m, n);
+                    d += diff * diff;
+                }
+                stats.theta += Math.sqrt(d);
+            }
+
+            //Search for the closest center
+            dmin = 9.99e+99; //Set dmin to a really big value
+            if (tree != null) {
+                for (n = 0; n < D; n++) {
+                    frame[n] = data.get(m, n);
+                }
+                k = tree.nearest(frame, 0, dmin, true);
+                if (k >= 0) {
+                    kmin = k;
+                }
+            } else {
+                for (k = 0; k < K; k++) {
+                    d = 0.0;
+                    for (n = 0; n < D; n++) {
+                        diff = data.get(m, n) - centroids[k * D + n];
+                        d += diff * diff;
+                    }
+                    if (d <= dmin) {
+                        dmin = d;
+                        kmin = k;
+                    }
+                }
+            }
+            if (kmin != current) {
+                stats.numChanged++;
+            }
+            nextAssign[m] = kmin;
+            stats.count[kmin]++;
+            for (n = 0; n < D; n++) {
+                sums[kmin * D + n] += data.get(m, n);
+            }
+        }
+    }
+
+    /**
+     * The M step of the parallel training, setting the clusters and counts from
+     * the reduced statistics. As in mstep, an empty cluster is set to zero.
+     */
+    private void updateClusters(KMeansStatistics stats) {
+        for (int k = 0; k < numClusters; k++) {
+            count[k] = stats.count[k];
+            for (int n = 0; n < numInputDimensions; n++) {
+                double val = stats.sums[k * numInputDimensions + n];
+                if (count[k] > 0) {
+                    val /= (double) count[k];
+                }
+                clusters.set(val, k, n);
+            }
+        }
+    }
+
     int estep(MatrixDouble data) {
         int k, m, n, kmin;
         double dmin, d;
@@ -267,6 +662,10 @@ class KMeans implements Serializable{
             count[k] = 0;
         }
 
+        if (useClusterIndex) {
+            return estepWithIndex(data);
+        }
+
         //Search for the closest center and reasign if needed
         for (m = 0; m < numTrainingSamples; m++) {
             dmin = 9.99e+99; //Set dmin to a really big value
@@ -289,6 +688,44 @@ class KMeans implements Serializable{
         return nchg;
     }
 
+    /**
+     * The E step using a KD-tree over the clusters, which gives the same
+     * assignments as the linear search in estep, ties included. nchg and
+     * count are reset by estep.
+     */
+    private int estepWithIndex(MatrixDouble data) {
+        final int D = numInputDimensions;
+        double[] centroids = new double[numClusters * D];
+        for (int k = 0; k < numClusters; k++) {
+            for (int n = 0; n < D; n++) {
+                centroids[k * D + n] = clusters.get(k, n);
+            }
+        }
+        if (clusterIndex == null) {
+            clusterIndex = new ClusterKDTree(centroids, numClusters, D);
+        } else {
+            clusterIndex.rebuild(centroids, numClusters, D);
+        }
+
+        double[] frame = new double[D];
+        int kmin = 0;
+        for (int m = 0; m < numTrainingSamples; m++) {
+            for (int n = 0; n < D; n++) {
+                frame[n] = data.get(m, n);
+            }
+            int k = clusterIndex.nearest(frame, 0, 9.99e+99, true);
+            if (k >= 0) {
+                kmin = k;
+            }
+            if (kmin != assign[m]) {
+                nchg++;
+                assign[m] = kmin;
+            }
+            count[kmin]++;
+        }
+        return nchg;
+    }
+
     void mstep(MatrixDouble data) {
         int n, k, m;
 
@@ -319,7 +756,7 @@ class KMeans implements Serializable{
         }
     }
 
-    private double calculateTheta(MatrixDouble data) {
+    double calculateTheta(MatrixDouble data) {
         double theta = 0;
         double sum = 0;
         int m, n, k = 0;
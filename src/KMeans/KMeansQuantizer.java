@@ -1,9 +1,15 @@
 package KMeans;
 
+import DataStructures.QuantizedSequenceData;
 import DataStructures.TimeSeriesClassificationData;
 import Util.MatrixDouble;
+import Util.MinMax;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 
 /*
  * To change this license header, choose License Headers in Project Properties.
@@ -16,6 +22,8 @@ import java.util.ArrayList;
  */
 public class KMeansQuantizer implements Serializable {//extends FeatureExtraction{
 
+    private static final long serialVersionUID = -6642690858950682738L;
+
     protected boolean trained = false;
     protected boolean featureDataReady = false;
     protected boolean initialized;
@@ -29,7 +37,21 @@ public class KMeansQuantizer implements Serializable {//extends FeatureExtractio
     protected String featureExtractionType;
     protected String classType = "";
     protected ArrayList<Double> featureVector = new ArrayList<Double>();
-    protected ArrayList<Double> quantizationDistances = new ArrayList<Double>();
+    protected ArrayList<Double> quantizationDistances = new ArrayList<Double>();  //No longer filled by quantize, kept for the serialized form
+    protected int numThreads = 1;   //Number of threads used to train the KMeans model
+    protected boolean useAcceleratedKMeans = false; //If true the KMeans model is trained with AcceleratedKMeans
+    protected int miniBatchSize = 1024;             //Number of frames in each mini-batch of the streaming training
+    protected boolean useRandomSeed = false;
+    protected long randomSeed = 0;                  //The seed used to pick the starting clusters, only used if useRandomSeed is true
+    protected KMeansSeedingMethod seedingMethod = KMeansSeedingMethod.RANDOM;
+    protected int numRestarts = 1;                  //Number of KMeans restarts, the one with the lowest theta is kept
+    protected boolean useClusterIndex = false;      //If true the KMeans E step uses a KD-tree over the clusters
+
+    private transient volatile QuantizerModel model;    //Flat copy of the clusters used by quantize, built on first use
+    private transient volatile ClusterIndex index;      //Optional index used instead of the brute-force search, see buildGridIndex
+    private transient double[] inputBuffer;             //Reused by quantize(ArrayList<Double>) to unbox the input vector
+
+    public static final long DEFAULT_GRID_MEMORY_BUDGET = 4 * 1024 * 1024;   //Default memory budget of the grid index, in bytes
 
     //protected VectorDouble quantizationDistances;
     //static RegisterFeatureExtractionModule< KMeansQuantizer > registerModule;
@@ -63,31 +85,405 @@ public class KMeansQuantizer implements Serializable {//extends FeatureExtractio
             return 0;
         }
 
-        //Find the minimum cluster
-        double minDist = Double.MAX_VALUE;
-        int quantizedValue = 0;
+        if (inputBuffer == null || inputBuffer.length != numInputDimensions) {
+            inputBuffer = new double[numInputDimensions];
+        }
+        for (int i = 0; i < numInputDimensions; i++) {
+            inputBuffer[i] = inputVector.get(i);
+        }
+
+        QuantizerModel m = getModel();
+        int quantizedValue = getIndex().nearestCluster(inputBuffer, 0);
+
+        featureVector.set(0, m.symbols[quantizedValue]);
+        featureDataReady = true;
+
+        return quantizedValue;
+    }
+
+    /**
+     * Quantizes one frame, returning the index of the closest cluster. This
+     * does not allocate anything and, unlike quantize(ArrayList<Double>), does
+     * not update the feature vector, so it can be called from several threads
+     * at once.
+     *
+     * @param frame: the frame, with numInputDimensions values
+     * @return the quantized value, or 0 if the quantizer has not been trained
+     * or the frame has the wrong size
+     */
+    public int quantize(double[] frame) {
+        if (!trained) {
+            System.err.println("quantize(double[] frame) - The quantizer has not been trained!");
+            return 0;
+        }
+
+        if (frame.length != numInputDimensions) {
+            System.err.println("quantize(double[] frame) - The size of the frame (" + frame.length + ") does not match that of the filter (" + numInputDimensions + ")!");
+            return 0;
+        }
+
+        return getIndex().nearestCluster(frame, 0);
+    }
+
+    /**
+     * Quantizes numFrames frames stored row-major in frames, writing the
+     * quantized values to out. Like quantize(double[]), this does not allocate
+     * anything and does not update the feature vector.
+     *
+     * @param frames: the frames, numFrames*numInputDimensions values
+     * @param numFrames: the number of frames to quantize
+     * @param out: receives the quantized value of each frame, must hold at
+     * least numFrames values
+     * @return true if the frames were quantized, false otherwise
+     */
+    public boolean quantize(double[] frames, int numFrames, int[] out) {
+        if (!trained) {
+            System.err.println("quantize(double[] frames, int numFrames, int[] out) - The quantizer has not been trained!");
+            return false;
+        }
+
+        if (frames.length < numFrames * numInputDimensions || out.length < numFrames) {
+            System.err.println("quantize(double[] frames, int numFrames, int[] out) - The frames or out buffers are too small for " + numFrames + " frames!");
+            return false;
+        }
 
-        for (int k = 0; k < numClusters; k++) {
+        ClusterIndex m = getIndex();
+        for (int t = 0; t < numFrames; t++) {
+            out[t] = m.nearestCluster(frames, t * numInputDimensions);
+        }
+        return true;
+    }
 
-            //Compute the squared Euclidean distance
-            quantizationDistances.add(k, 0.0);
-            for (int i = 0; i < numInputDimensions; i++) {
-                double val = quantizationDistances.get(k);
-                val += Math.pow(inputVector.get(i) - clusters.get(k, i), 2);
-                quantizationDistances.set(k, val);
+    /**
+     * Quantizes every row of data, writing the quantized values to out.
+     */
+    public boolean quantize(MatrixDouble data, int[] out) {
+        if (!trained) {
+            System.err.println("quantize(MatrixDouble data, int[] out) - The quantizer has not been trained!");
+            return false;
+        }
 
+        if (data.getNumCols() != numInputDimensions || out.length < data.getNumRows()) {
+            System.err.println("quantize(MatrixDouble data, int[] out) - The data does not match the quantizer or out is too small!");
+            return false;
+        }
+
+        ClusterIndex m = getIndex();
+        if (data.isContiguous()) {
+            //Read the frames in place
+            double[] frames = data.getData();
+            for (int t = 0; t < data.getNumRows(); t++) {
+                out[t] = m.nearestCluster(frames, data.getOffset() + t * numInputDimensions);
             }
+            return true;
+        }
+        double[] frame = new double[numInputDimensions];
+        for (int t = 0; t < data.getNumRows(); t++) {
+            data.getRow(t, frame, 0);
+            out[t] = m.nearestCluster(frame, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Quantizes every sample of data into a compact symbol sequence dataset
+     * with the same class labels, ready for HMM training and prediction.
+     *
+     * @return the quantized dataset, or null if the quantizer has not been
+     * trained or the data does not match it
+     */
+    public QuantizedSequenceData quantize(TimeSeriesClassificationData data) {
+        if (!trained) {
+            System.err.println("quantize(TimeSeriesClassificationData data) - The quantizer has not been trained!");
+            return null;
+        }
 
-            if (quantizationDistances.get(k) < minDist) {
-                minDist = quantizationDistances.get(k);
-                quantizedValue = k;
+        if (numClusters > QuantizedSequenceData.MAX_NUM_SYMBOLS) {
+            System.err.println("quantize(TimeSeriesClassificationData data) - There are too many clusters (" + numClusters + ") to store the symbols compactly!");
+            return null;
+        }
+
+        QuantizedSequenceData quantizedData = new QuantizedSequenceData(numClusters);
+        int[] symbols = new int[0];
+        for (int i = 0; i < data.getNumSamples(); i++) {
+            MatrixDouble sample = data.get(i).getData();
+            final int length = sample.getNumRows();
+            if (symbols.length < length) {
+                symbols = new int[Math.max(length, symbols.length * 2)];
+            }
+            if (length > 0 && !quantize(sample, symbols)) {
+                return null;
+            }
+            if (!quantizedData.addSample(data.get(i).getClassLabel(), symbols, 0, length)) {
+                return null;
             }
         }
-        //System.out.println("featureVector size:  " + featureVector.size());
-        featureVector.set(0, (double) quantizedValue);
-        featureDataReady = true;
+        quantizedData.trimToSize();
+        return quantizedData;
+    }
 
-        return quantizedValue;
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    public int getNumInputDimensions() {
+        return numInputDimensions;
+    }
+
+    /**
+     * Returns a copy of the trained clusters, stored row-major as
+     * centroids[k*numInputDimensions+n].
+     *
+     * @return the clusters, or null if the quantizer has not been trained
+     */
+    public double[] getCentroids() {
+        if (!trained) {
+            System.err.println("getCentroids() - The quantizer has not been trained!");
+            return null;
+        }
+        return getModel().centroids.clone();
+    }
+
+    /**
+     * Returns a SHA-256 hash of the trained clusters, as a hex string. Two
+     * quantizers with the same hash quantize every frame to the same value, so
+     * it can be used to key data quantized with this quantizer.
+     *
+     * @return the hash, or null if the quantizer has not been trained
+     */
+    public String getModelHash() {
+        if (!trained) {
+            System.err.println("getModelHash() - The quantizer has not been trained!");
+            return null;
+        }
+
+        QuantizerModel m = getModel();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 8 * m.centroids.length);
+        buffer.putInt(m.numClusters).putInt(m.numDimensions);
+        for (double value : m.centroids) {
+            buffer.putLong(Double.doubleToLongBits(value));
+        }
+        return QuantizedDataCache.toHex(QuantizedDataCache.newDigest().digest(buffer.array()));
+    }
+
+    /**
+     * Builds a lookup grid over the ranges of the data, see buildGridIndex(ArrayList<MinMax>, long).
+     */
+    public boolean buildGridIndex(MatrixDouble data, long memoryBudget) {
+        if (data.getNumRows() == 0 || data.getNumCols() != numInputDimensions) {
+            System.err.println("buildGridIndex(MatrixDouble data, long memoryBudget) - The data does not match the quantizer!");
+            return false;
+        }
+
+        ArrayList<MinMax> ranges = new ArrayList<MinMax>(numInputDimensions);
+        for (int n = 0; n < numInputDimensions; n++) {
+            ranges.add(new MinMax(data.get(0, n), data.get(0, n)));
+        }
+        for (int t = 1; t < data.getNumRows(); t++) {
+            for (int n = 0; n < numInputDimensions; n++) {
+                ranges.get(n).updateMinMax(data.get(t, n));
+            }
+        }
+        return buildGridIndex(ranges, memoryBudget);
+    }
+
+    public boolean buildGridIndex(ArrayList<MinMax> ranges) {
+        return buildGridIndex(ranges, DEFAULT_GRID_MEMORY_BUDGET);
+    }
+
+    /**
+     * Builds a lookup grid over the given input ranges, so that most frames are
+     * quantized with a table lookup instead of a search over every cluster.
+     * The quantized values are exactly the same as without the grid: frames
+     * near a cell boundary are compared with the few clusters that can be
+     * closest in their cell, and frames outside the ranges fall back to the
+     * full search. The grid is meant for low dimensional data, as the number of
+     * cells grows as resolution^numInputDimensions.
+     *
+     * The grid is not serialized, so it must be built again after the
+     * quantizer is loaded, and it is dropped when the quantizer is trained.
+     *
+     * @param ranges: the min and max value of each input dimension, usually
+     * those of the training data
+     * @param memoryBudget: the maximum memory size of the grid, in bytes
+     * @return true if the grid was built, false if the quantizer is not
+     * trained or not even 2 cells per dimension fit in the budget
+     */
+    public boolean buildGridIndex(ArrayList<MinMax> ranges, long memoryBudget) {
+        if (!trained) {
+            System.err.println("buildGridIndex(ArrayList<MinMax> ranges, long memoryBudget) - The quantizer has not been trained!");
+            return false;
+        }
+
+        if (ranges.size() != numInputDimensions) {
+            System.err.println("buildGridIndex(ArrayList<MinMax> ranges, long memoryBudget) - The number of ranges (" + ranges.size() + ") does not match the number of input dimensions (" + numInputDimensions + ")!");
+            return false;
+        }
+
+        double[] min = new double[numInputDimensions];
+        double[] max = new double[numInputDimensions];
+        for (int n = 0; n < numInputDimensions; n++) {
+            min[n] = ranges.get(n).minValue;
+            max[n] = ranges.get(n).maxValue;
+        }
+
+        QuantizerGrid grid = QuantizerGrid.build(getModel(), min, max, memoryBudget);
+        if (grid == null) {
+            System.err.println("buildGridIndex(ArrayList<MinMax> ranges, long memoryBudget) - A grid with " + numInputDimensions + " dimensions does not fit in " + memoryBudget + " bytes!");
+            return false;
+        }
+        System.out.println("Quantization grid: " + grid.resolution + "^" + numInputDimensions + " cells, "
+                + (100.0 * grid.numSingleCells / grid.getNumCells()) + "% resolved by lookup, " + grid.getMemorySize() + " bytes");
+        index = grid;
+        return true;
+    }
+
+    /**
+     * Builds a KD-tree over the clusters, so that quantizing a frame takes
+     * roughly log(numClusters) distance computations instead of numClusters.
+     * Unlike the grid it works for any number of input dimensions, and it pays
+     * off with large codebooks. The quantized values are exactly the same as
+     * without the index.
+     *
+     * The tree is not serialized, so it must be built again after the
+     * quantizer is loaded, and it is dropped when the quantizer is trained.
+     */
+    public boolean buildTreeIndex() {
+        if (!trained) {
+            System.err.println("buildTreeIndex() - The quantizer has not been trained!");
+            return false;
+        }
+        index = new ClusterKDTree(getModel());
+        return true;
+    }
+
+    /**
+     * Drops the quantization index, going back to the brute-force search.
+     */
+    public void clearIndex() {
+        index = null;
+    }
+
+    /**
+     * Returns the index used to find the closest cluster: the quantization
+     * index if one was built, the brute-force search otherwise.
+     */
+    private ClusterIndex getIndex() {
+        ClusterIndex i = index;
+        return i != null ? i : getModel();
+    }
+
+    /**
+     * Returns the flat copy of the clusters, building it if needed. The model is
+     * immutable, so two threads building it at once is harmless.
+     */
+    private QuantizerModel getModel() {
+        QuantizerModel m = model;
+        if (m == null) {
+            m = new QuantizerModel(clusters, numClusters, numInputDimensions);
+            model = m;
+        }
+        return m;
+    }
+
+    /**
+     * Reads the quantizer, setting the training settings that were added after
+     * the first serialized form to their defaults for streams written before
+     * them.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (numThreads < 1) {
+            numThreads = 1;
+        }
+        if (miniBatchSize < 1) {
+            miniBatchSize = 1024;
+        }
+        if (seedingMethod == null) {
+            seedingMethod = KMeansSeedingMethod.RANDOM;
+        }
+        if (numRestarts < 1) {
+            numRestarts = 1;
+        }
+    }
+
+    /**
+     * Sets the number of threads used by train. With more than one thread the
+     * KMeans model is trained with the parallel engine, which gives the same
+     * clusters as the sequential one up to the last bits of the sums.
+     */
+    public boolean setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            System.err.println("setNumThreads(int numThreads) - The number of threads must be greater than zero!");
+            return false;
+        }
+        this.numThreads = numThreads;
+        return true;
+    }
+
+    /**
+     * If true, train uses AcceleratedKMeans, which gives the same clusters as
+     * the default KMeans but skips most of the distance evaluations once the
+     * assignments settle. This pays off with large codebooks. It always trains
+     * on a single thread.
+     */
+    public void setUseAcceleratedKMeans(boolean useAcceleratedKMeans) {
+        this.useAcceleratedKMeans = useAcceleratedKMeans;
+    }
+
+    /**
+     * If true, train finds the closest cluster of each sample with a KD-tree
+     * over the clusters. The clusters are exactly the same, and with large
+     * codebooks the training is much faster.
+     */
+    public void setUseClusterIndex(boolean useClusterIndex) {
+        this.useClusterIndex = useClusterIndex;
+    }
+
+    public boolean setMiniBatchSize(int miniBatchSize) {
+        if (miniBatchSize < 1) {
+            System.err.println("setMiniBatchSize(int miniBatchSize) - The mini-batch size must be greater than zero!");
+            return false;
+        }
+        this.miniBatchSize = miniBatchSize;
+        return true;
+    }
+
+    /**
+     * Sets how train picks the starting clusters, at random by default.
+     * KMEANS_PARALLEL uses the training threads.
+     */
+    public boolean setSeedingMethod(KMeansSeedingMethod seedingMethod) {
+        if (seedingMethod == null) {
+            System.err.println("setSeedingMethod(KMeansSeedingMethod seedingMethod) - The seeding method can not be null!");
+            return false;
+        }
+        this.seedingMethod = seedingMethod;
+        return true;
+    }
+
+    /**
+     * Sets the number of times train runs KMeans from different starting
+     * clusters, keeping the clusters with the lowest theta. The restarts run
+     * in parallel if there is more than one training thread.
+     */
+    public boolean setNumRestarts(int numRestarts) {
+        if (numRestarts < 1) {
+            System.err.println("setNumRestarts(int numRestarts) - The number of restarts must be greater than zero!");
+            return false;
+        }
+        this.numRestarts = numRestarts;
+        return true;
+    }
+
+    /**
+     * Sets the seed used to pick the starting clusters, so that training on the
+     * same data gives the same quantizer.
+     */
+    public boolean setRandomSeed(long randomSeed) {
+        this.randomSeed = randomSeed;
+        this.useRandomSeed = true;
+        return true;
     }
 
     public boolean train(MatrixDouble trainingData) {
@@ -95,12 +491,21 @@ public class KMeansQuantizer implements Serializable {//extends FeatureExtractio
         clear();
 
         //Train the KMeans model
-        KMeans kmeans = new KMeans();
+        KMeans kmeans = useAcceleratedKMeans ? new AcceleratedKMeans() : new KMeans();
         kmeans.setNumClusters(numClusters);
         kmeans.setComputeTheta(true);
         kmeans.setMinChange(minChange);
         kmeans.setMinNumEpochs(minNumEpochs);
         kmeans.setMaxNumEpochs(maxNumEpochs);
+        kmeans.setSeedingMethod(seedingMethod);
+        kmeans.setNumRestarts(numRestarts);
+        kmeans.setUseClusterIndex(useClusterIndex);
+        if (useRandomSeed) {
+            kmeans.setRandomSeed(randomSeed);
+        }
+        if (!useAcceleratedKMeans) {
+            kmeans.setNumThreads(numThreads);
+        }
 
         /* DEBUG */
 //    System.out.println("numClusters: " + numClusters );
@@ -112,19 +517,90 @@ public class KMeansQuantizer implements Serializable {//extends FeatureExtractio
             return false;
         }
 
+        setModel(kmeans);
+
+        return true;
+    }
+
+    /**
+     * Trains the quantizer on all the frames of the dataset with mini-batch
+     * KMeans, reading the samples in place instead of concatenating them with
+     * getDataAsMatrixDouble. Unlike train(MatrixDouble), the seeding method,
+     * restarts, threads and accelerated setting are not used.
+     */
+    public boolean trainMiniBatch(final TimeSeriesClassificationData trainingData) {
+        return trainMiniBatch(new Iterable<MatrixDouble>() {
+            @Override
+            public Iterator<MatrixDouble> iterator() {
+                return new Iterator<MatrixDouble>() {
+                    private int index = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < trainingData.getNumSamples();
+                    }
+
+                    @Override
+                    public MatrixDouble next() {
+                        return trainingData.get(index++).getData();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Trains the quantizer with mini-batch KMeans on the frames (rows) of all
+     * the matrices returned by samples, holding only one mini-batch of frames
+     * at a time. The samples are iterated once per epoch, plus once to pick the
+     * starting clusters, so they can be read from a source larger than the
+     * memory as long as each iteration returns the same frames.
+     */
+    public boolean trainMiniBatch(Iterable<MatrixDouble> samples) {
+        //Clear any previous model
+        clear();
+
+        //Train the KMeans model
+        MiniBatchKMeans kmeans = new MiniBatchKMeans();
+        kmeans.setNumClusters(numClusters);
+        kmeans.setMinChange(minChange);
+        kmeans.setMinNumEpochs(minNumEpochs);
+        kmeans.setMaxNumEpochs(maxNumEpochs);
+        kmeans.setBatchSize(miniBatchSize);
+        if (useRandomSeed) {
+            kmeans.setRandomSeed(randomSeed);
+        }
+
+        if (!kmeans.train(samples)) {
+            System.err.println("trainMiniBatch(Iterable<MatrixDouble> samples) - Failed to train quantizer!");
+            return false;
+        }
+
+        setModel(kmeans);
+
+        return true;
+    }
+
+    private void setModel(KMeans kmeans) {
         trained = true;
         initialized = true;
-        numInputDimensions = trainingData.getNumCols();
+        numInputDimensions = kmeans.numInputDimensions;
         numOutputDimensions = 1; //This is always 1 for the KMeansQuantizer
         featureVector.ensureCapacity(numOutputDimensions);
         clusters = kmeans.getClusters();
-        quantizationDistances.ensureCapacity(numClusters);
-
-        return true;
+        model = null;
+        index = null;
     }
 
     private boolean clear() {
         clusters = null;//.clear();
+        model = null;
+        index = null;
         quantizationDistances.clear();
 
         return true;
@@ -0,0 +1,399 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+import Util.MatrixDouble;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Picks the starting clusters of a KMeans model from the training samples.
+ *
+ * k-means++ (Arthur and Vassilvitskii) picks each new cluster with a
+ * probability proportional to its squared distance to the clusters picked so
+ * far, which spreads the clusters over the data and cuts the number of epochs
+ * needed to converge. It needs numClusters sequential passes over the data.
+ *
+ * k-means|| (Bahmani et al.) gets a similar seeding in a few passes: each pass
+ * samples about 2*numClusters candidates at once, independently for every
+ * sample, so the passes run in parallel. The candidates are then weighted by
+ * the number of samples closest to them and reduced to numClusters with a
+ * weighted k-means++. The samples are split in the same fixed blocks as the
+ * parallel training, each with its own random generator, so the seeding only
+ * depends on the random generator passed in and not on the number of threads.
+ *
+ * @author Пользователь
+ */
+class KMeansSeeding {
+
+    private static final int NUM_PARALLEL_ROUNDS = 5;          //Number of sampling passes of k-means||
+    private static final int OVERSAMPLING_FACTOR = 2;          //k-means|| samples about OVERSAMPLING_FACTOR*numClusters candidates per pass
+
+    private final MatrixDouble data;
+    private final int numSamples;
+    private final int numDimensions;
+    private final int numClusters;
+    private final Random random;
+
+    KMeansSeeding(MatrixDouble data, int numClusters, Random random) {
+        this.data = data;
+        this.numSamples = data.getNumRows();
+        this.numDimensions = data.getNumCols();
+        this.numClusters = numClusters;
+        this.random = random;
+    }
+
+    /**
+     * Fills clusters, which must already be numClusters x numDimensions, with
+     * the starting clusters.
+     *
+     * @param numThreads: the number of threads used by KMEANS_PARALLEL
+     */
+    boolean seed(KMeansSeedingMethod method, MatrixDouble clusters, int numThreads) {
+        if (numSamples < numClusters) {
+            System.err.println("seed(KMeansSeedingMethod method) - There are fewer samples (" + numSamples + ") than clusters (" + numClusters + ")!");
+            return false;
+        }
+
+        switch (method) {
+            case KMEANS_PLUS_PLUS:
+                seedPlusPlus(clusters);
+                return true;
+            case KMEANS_PARALLEL:
+                return seedParallel(clusters, numThreads);
+            default:
+                seedRandom(clusters);
+                return true;
+        }
+    }
+
+    /**
+     * Picks numClusters distinct samples uniformly at random.
+     */
+    void seedRandom(MatrixDouble clusters) {
+        //Shuffle the first numClusters indexes
+        int[] randIndexs = new int[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            randIndexs[i] = i;
+        }
+        for (int i = 0; i < numClusters; i++) {
+            int change = i + random.nextInt(numSamples - i);
+
+            int temp = randIndexs[i];
+            randIndexs[i] = randIndexs[change];
+            randIndexs[change] = temp;
+        }
+
+        for (int k = 0; k < numClusters; k++) {
+            copySample(randIndexs[k], clusters, k);
+        }
+    }
+
+    void seedPlusPlus(MatrixDouble clusters) {
+        final double[] minDist = new double[numSamples];
+
+        int index = random.nextInt(numSamples);
+        copySample(index, clusters, 0);
+        for (int m = 0; m < numSamples; m++) {
+            minDist[m] = distance(m, clusters, 0);
+        }
+
+        for (int k = 1; k < numClusters; k++) {
+            index = sample(minDist, null, numSamples);
+            copySample(index, clusters, k);
+            for (int m = 0; m < numSamples; m++) {
+                double d = distance(m, clusters, k);
+                if (d < minDist[m]) {
+                    minDist[m] = d;
+                }
+            }
+        }
+    }
+
+    boolean seedParallel(MatrixDouble clusters, int numThreads) {
+        final int numBlocks = KMeans.getNumBlocks(numSamples);
+        final double[] minDist = new double[numSamples];
+        final ArrayList<Integer> candidates = new ArrayList<Integer>();
+
+        ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(Math.min(numThreads, numBlocks)) : null;
+        try {
+            //Start from one sample picked uniformly at random
+            candidates.add(random.nextInt(numSamples));
+            Arrays.fill(minDist, Double.MAX_VALUE);
+            if (!updateMinDist(minDist, candidates, 0, numBlocks, executor)) {
+                return false;
+            }
+
+            for (int round = 0; round < NUM_PARALLEL_ROUNDS; round++) {
+                double psi = 0;
+                for (int m = 0; m < numSamples; m++) {
+                    psi += minDist[m];
+                }
+                if (psi == 0) {
+                    break;
+                }
+
+                //Sample each point independently with a probability proportional to its squared distance
+                final double scale = (double) OVERSAMPLING_FACTOR * numClusters / psi;
+                final long roundSeed = random.nextLong();
+                final List<List<Integer>> sampled = new ArrayList<List<Integer>>(numBlocks);
+                List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(numBlocks);
+                for (int b = 0; b < numBlocks; b++) {
+                    final List<Integer> blockSampled = new ArrayList<Integer>();
+                    final int start = blockStart(b, numBlocks);
+                    final int end = blockStart(b + 1, numBlocks);
+                    final long blockSeed = roundSeed + b;
+                    sampled.add(blockSampled);
+                    tasks.add(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            Random blockRandom = new Random(blockSeed);
+                            for (int m = start; m < end; m++) {
+                                if (blockRandom.nextDouble() < scale * minDist[m]) {
+                                    blockSampled.add(m);
+                                }
+                            }
+                            return true;
+                        }
+                    });
+                }
+                if (!runBlocks(tasks, executor)) {
+                    return false;
+                }
+
+                int firstNew = candidates.size();
+                for (List<Integer> blockSampled : sampled) {
+                    candidates.addAll(blockSampled);
+                }
+                if (!updateMinDist(minDist, candidates, firstNew, numBlocks, executor)) {
+                    return false;
+                }
+            }
+
+            if (candidates.size() < numClusters) {
+                //Too few distinct candidates to pick from, the data has fewer distinct points than the sampling expects
+                seedPlusPlus(clusters);
+                return true;
+            }
+
+            //Weight each candidate by the number of samples closest to it
+            double[] weights = new double[candidates.size()];
+            if (!countClosest(candidates, weights, numBlocks, executor)) {
+                return false;
+            }
+
+            reduceCandidates(candidates, weights, clusters);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Updates the squared distance of each sample to its closest candidate with
+     * the candidates from firstNew on.
+     */
+    private boolean updateMinDist(final double[] minDist, final ArrayList<Integer> candidates, final int firstNew, final int numBlocks, ExecutorService executor) {
+        final int numCandidates = candidates.size();
+        final double[] centres = copySamples(candidates, firstNew, numCandidates);
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(numBlocks);
+        for (int b = 0; b < numBlocks; b++) {
+            final int start = blockStart(b, numBlocks);
+            final int end = blockStart(b + 1, numBlocks);
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (int m = start; m < end; m++) {
+                        for (int c = 0; c < numCandidates - firstNew; c++) {
+                            double d = distance(m, centres, c);
+                            if (d < minDist[m]) {
+                                minDist[m] = d;
+                            }
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+        return runBlocks(tasks, executor);
+    }
+
+    /**
+     * Adds the number of samples closest to each candidate to weights.
+     */
+    private boolean countClosest(final ArrayList<Integer> candidates, double[] weights, final int numBlocks, ExecutorService executor) {
+        final int numCandidates = candidates.size();
+        final double[] centres = copySamples(candidates, 0, numCandidates);
+        final int[][] blockCounts = new int[numBlocks][numCandidates];
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(numBlocks);
+        for (int b = 0; b < numBlocks; b++) {
+            final int start = blockStart(b, numBlocks);
+            final int end = blockStart(b + 1, numBlocks);
+            final int[] counts = blockCounts[b];
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (int m = start; m < end; m++) {
+                        double dmin = Double.MAX_VALUE;
+                        int cmin = 0;
+                        for (int c = 0; c < numCandidates; c++) {
+                            double d = distance(m, centres, c);
+                            if (d < dmin) {
+                                dmin = d;
+                                cmin = c;
+                            }
+                        }
+                        counts[cmin]++;
+                    }
+                    return true;
+                }
+            });
+        }
+        if (!runBlocks(tasks, executor)) {
+            return false;
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            for (int c = 0; c < numCandidates; c++) {
+                weights[c] += blockCounts[b][c];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Picks numClusters of the weighted candidates with k-means++.
+     */
+    private void reduceCandidates(ArrayList<Integer> candidates, double[] weights, MatrixDouble clusters) {
+        final int numCandidates = candidates.size();
+        final double[] centres = copySamples(candidates, 0, numCandidates);
+        final double[] minDist = new double[numCandidates];
+        Arrays.fill(minDist, Double.MAX_VALUE);
+
+        int index = sample(weights, null, numCandidates);
+        for (int k = 0; k < numClusters; k++) {
+            if (k > 0) {
+                index = sample(minDist, weights, numCandidates);
+            }
+            for (int n = 0; n < numDimensions; n++) {
+                clusters.set(centres[index * numDimensions + n], k, n);
+            }
+            for (int c = 0; c < numCandidates; c++) {
+                double d = 0.0;
+                for (int n = 0; n < numDimensions; n++) {
+                    double diff = centres[c * numDimensions + n] - centres[index * numDimensions + n];
+                    d += diff * diff;
+                }
+                if (d < minDist[c]) {
+                    minDist[c] = d;
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks an index with a probability proportional to dist[i]*weights[i], or
+     * to dist[i] if weights is null. If all the products are zero every point
+     * is already a cluster, so any index will do.
+     */
+    private int sample(double[] dist, double[] weights, int length) {
+        double total = 0;
+        for (int i = 0; i < length; i++) {
+            total += weights == null ? dist[i] : dist[i] * weights[i];
+        }
+        if (total <= 0) {
+            return random.nextInt(length);
+        }
+
+        double r = random.nextDouble() * total;
+        double sum = 0;
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            double p = weights == null ? dist[i] : dist[i] * weights[i];
+            if (p > 0) {
+                sum += p;
+                last = i;
+                if (r < sum) {
+                    return i;
+                }
+            }
+        }
+        return last;
+    }
+
+    private int blockStart(int block, int numBlocks) {
+        return (int) ((long) numSamples * block / numBlocks);
+    }
+
+    private boolean runBlocks(List<Callable<Boolean>> tasks, ExecutorService executor) {
+        try {
+            if (executor == null) {
+                for (Callable<Boolean> task : tasks) {
+                    task.call();
+                }
+                return true;
+            }
+            List<Future<Boolean>> results = executor.invokeAll(tasks);
+            for (Future<Boolean> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.err.println("seedParallel(MatrixDouble clusters) - Interrupted while seeding the clusters!");
+            return false;
+        } catch (ExecutionException ex) {
+            System.err.println("seedParallel(MatrixDouble clusters) - Failed to seed the clusters! " + ex.getCause());
+            return false;
+        } catch (Exception ex) {
+            System.err.println("seedParallel(MatrixDouble clusters) - Failed to seed the clusters! " + ex);
+            return false;
+        }
+        return true;
+    }
+
+    private double[] copySamples(ArrayList<Integer> indexes, int from, int to) {
+        double[] samples = new double[(to - from) * numDimensions];
+        for (int c = from; c < to; c++) {
+            int m = indexes.get(c);
+            for (int n = 0; n < numDimensions; n++) {
+                samples[(c - from) * numDimensions + n] = data.get(m, n);
+            }
+        }
+        return samples;
+    }
+
+    private void copySample(int m, MatrixDouble clusters, int k) {
+        for (int n = 0; n < numDimensions; n++) {
+            clusters.set(data.get(m, n), k, n);
+        }
+    }
+
+    private double distance(int m, MatrixDouble clusters, int k) {
+        double d = 0.0;
+        for (int n = 0; n < numDimensions; n++) {
+            double diff = data.get(m, n) - clusters.get(k, n);
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    private double distance(int m, double[] centres, int c) {
+        double d = 0.0;
+        for (int n = 0; n < numDimensions; n++) {
+            double diff = data.get(m, n) - centres[c * numDimensions + n];
+            d += diff * diff;
+        }
+        return d;
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package KMeans;
+
+/**
+ * How KMeans picks its starting clusters: RANDOM picks samples uniformly at
+ * random, KMEANS_PLUS_PLUS is k-means++ and KMEANS_PARALLEL is the parallel
+ * k-means|| variant of it.
+ *
+ * @author Пользователь
+ */
+public enum KMeansSeedingMethod {
+    RANDOM, KMEANS_PLUS_PLUS, KMEANS_PARALLEL
+}
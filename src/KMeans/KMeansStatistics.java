@@ -0,0 +1,53 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+import java.util.Arrays;
+
+/**
+ * The sufficient statistics of one KMeans epoch over a block of samples: the
+ * per-cluster sums and counts needed by the M step, the number of changed
+ * assignments and the sum of the distances used by theta.
+ *
+ * @author Пользователь
+ */
+class KMeansStatistics {
+
+    int numClusters = 0;
+    int numDimensions = 0;
+    double[] sums = new double[0];  //Sum of the assigned samples, stored row-major as sums[k*numDimensions+n]
+    int[] count = new int[0];       //Number of samples assigned to each cluster
+    int numChanged = 0;             //Number of samples that changed cluster
+    double theta = 0.0;             //Sum of the distances of the samples to their previous cluster
+
+    KMeansStatistics(int numClusters, int numDimensions) {
+        this.numClusters = numClusters;
+        this.numDimensions = numDimensions;
+        sums = new double[numClusters * numDimensions];
+        count = new int[numClusters];
+    }
+
+    void clear() {
+        Arrays.fill(sums, 0.0);
+        Arrays.fill(count, 0);
+        numChanged = 0;
+        theta = 0.0;
+    }
+
+    /**
+     * Adds the statistics of another block to these ones.
+     */
+    void add(KMeansStatistics other) {
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] += other.sums[i];
+        }
+        for (int k = 0; k < numClusters; k++) {
+            count[k] += other.count[k];
+        }
+        numChanged += other.numChanged;
+        theta += other.theta;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+import Util.MatrixDouble;
+import java.util.Collections;
+
+/**
+ * A KMeans model trained with mini-batches (Sculley, "Web-scale k-means
+ * clustering"). The training data is read as a sequence of matrices, for
+ * example the samples of a dataset, and only one batch of frames is held at a
+ * time, so the data never has to be concatenated into a single matrix and can
+ * be larger than the memory.
+ *
+ * Each epoch streams over all the frames once. The frames of a batch are
+ * assigned to their closest cluster, then each cluster is moved towards its
+ * frames with a learning rate of 1/n, where n is the number of frames the
+ * cluster has been given so far. A cluster is therefore the running mean of
+ * its frames and settles as training goes on. The starting clusters are picked
+ * at random from the frames with reservoir sampling, which takes one extra
+ * pass over the data.
+ *
+ * Theta is the mean distance of the frames to their cluster at the time they
+ * were assigned, which is computed as part of the assignment.
+ *
+ * @author Пользователь
+ */
+class MiniBatchKMeans extends KMeans {
+
+    private static final long serialVersionUID = 3527556316165319002L;
+
+    protected int batchSize = 1024;             ///<Number of frames in each mini-batch
+    protected long numTrainingFrames = 0;       ///<Number of frames seen in one epoch
+
+    public MiniBatchKMeans(int numClusters, int minNumEpochs, int maxNumEpochs, double minChange) {
+        super(numClusters, minNumEpochs, maxNumEpochs, minChange, true);
+    }
+
+    public MiniBatchKMeans() {
+    }
+
+    public boolean setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            System.err.println("setBatchSize(int batchSize) - The batch size must be greater than zero!");
+            return false;
+        }
+        this.batchSize = batchSize;
+        return true;
+    }
+
+    /**
+     * Mini-batch training runs on a single thread.
+     */
+    @Override
+    public void setNumThreads(int numThreads) {
+        if (numThreads > 1) {
+            System.err.println("setNumThreads(int numThreads) - MiniBatchKMeans always trains on a single thread!");
+        }
+    }
+
+    @Override
+    boolean train(MatrixDouble data) {
+        return train(Collections.singletonList(data));
+    }
+
+    /**
+     * Trains the model on the frames (rows) of all the matrices returned by
+     * samples. The samples are iterated once to pick the starting clusters and
+     * once per epoch, so the Iterable must return the same frames each time.
+     *
+     * @param samples: the training data, all the matrices must have the same
+     * number of columns
+     * @return returns true if the model was successfully trained, false
+     * otherwise
+     */
+    boolean train(Iterable<MatrixDouble> samples) {
+        trained = false;
+        converged = false;
+        thetaTracker.clear();
+        finalTheta = 0;
+        numTrainingIterationsToConverge = 0;
+
+        if (numClusters == 0) {
+            System.err.println("train(Iterable<MatrixDouble> samples) - Failed to train model. NumClusters is zero!");
+            return false;
+        }
+
+        if (!initClusters(samples)) {
+            return false;
+        }
+
+        final int K = numClusters;
+        final int D = numInputDimensions;
+        final double[] centroids = new double[K * D];
+        final long[] clusterCounts = new long[K];
+        final double[] batch = new double[batchSize * D];
+        final int[] batchAssign = new int[batchSize];
+        for (int k = 0; k < K; k++) {
+            for (int n = 0; n < D; n++) {
+                centroids[k * D + n] = clusters.get(k, n);
+            }
+        }
+
+        int currentIter = 0;
+        boolean keepTraining = true;
+        double theta = 0;
+        double lastTheta = 0;
+        double delta = 0;
+        double startTime = 0;
+
+        while (keepTraining) {
+            startTime = System.currentTimeMillis();
+
+            //Stream over all the frames, one batch at a time
+            double distanceSum = 0;
+            int batchLength = 0;
+            for (MatrixDouble sample : samples) {
+                final int rows = sample.getNumRows();
+                for (int i = 0; i < rows; i++) {
+                    for (int n = 0; n < D; n++) {
+                        batch[batchLength * D + n] = sample.get(i, n);
+                    }
+                    batchLength++;
+                    if (batchLength == batchSize) {
+                        distanceSum += updateBatch(batch, batchAssign, batchLength, centroids, clusterCounts);
+                        batchLength = 0;
+                    }
+                }
+            }
+            if (batchLength > 0) {
+                distanceSum += updateBatch(batch, batchAssign, batchLength, centroids, clusterCounts);
+            }
+
+            currentIter++;
+            theta = distanceSum / numTrainingFrames;
+            delta = lastTheta - theta;
+            lastTheta = theta;
+
+            //Check convergance
+            if (currentIter >= maxNumEpochs) {
+                keepTraining = false;
+            }
+            if (Math.abs(delta) < minChange && currentIter > minNumEpochs) {
+                converged = true;
+                keepTraining = false;
+            }
+            thetaTracker.add(theta);
+            System.out.println("Epoch: " + currentIter + "/" + maxNumEpochs);
+            System.out.println(" Epoch time: " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+            System.out.println(" Theta: " + theta + " Delta: " + delta);
+        }
+        System.out.println("Model Trained at epoch: " + currentIter + " with a theta value of: " + theta);
+
+        for (int k = 0; k < K; k++) {
+            for (int n = 0; n < D; n++) {
+                clusters.set(centroids[k * D + n], k, n);
+            }
+        }
+        finalTheta = theta;
+        numTrainingIterationsToConverge = currentIter;
+        trained = true;
+
+        return true;
+    }
+
+    /**
+     * Picks the starting clusters uniformly at random from all the frames with
+     * reservoir sampling, and counts the frames.
+     */
+    private boolean initClusters(Iterable<MatrixDouble> samples) {
+        numInputDimensions = 0;
+        numTrainingFrames = 0;
+        for (MatrixDouble sample : samples) {
+            if (sample.getNumRows() == 0) {
+                continue;
+            }
+            if (numTrainingFrames == 0) {
+                numInputDimensions = sample.getNumCols();
+                clusters.resize(numClusters, numInputDimensions);
+            } else if (sample.getNumCols() != numInputDimensions) {
+                System.err.println("train(Iterable<MatrixDouble> samples) - The number of columns in a sample (" + sample.getNumCols() + ") does not match that of the first sample (" + numInputDimensions + ")!");
+                return false;
+            }
+
+            for (int i = 0; i < sample.getNumRows(); i++) {
+                int k;
+                if (numTrainingFrames < numClusters) {
+                    k = (int) numTrainingFrames;
+                } else {
+                    long r = (long) (random.nextDouble() * (numTrainingFrames + 1));
+                    k = r < numClusters ? (int) r : -1;
+                }
+                if (k >= 0) {
+                    for (int n = 0; n < numInputDimensions; n++) {
+                        clusters.set(sample.get(i, n), k, n);
+                    }
+                }
+                numTrainingFrames++;
+            }
+        }
+
+        if (numTrainingFrames < numClusters) {
+            System.err.println("train(Iterable<MatrixDouble> samples) - Failed to train model. There are fewer frames (" + numTrainingFrames + ") than clusters (" + numClusters + ")!");
+            return false;
+        }
+        numTrainingSamples = (int) Math.min(numTrainingFrames, Integer.MAX_VALUE);
+        return true;
+    }
+
+    /**
+     * Assigns each frame of the batch to its closest cluster, then moves the
+     * clusters towards their frames.
+     *
+     * @return the sum of the distances of the frames to their cluster
+     */
+    private double updateBatch(double[] batch, int[] batchAssign, int batchLength, double[] centroids, long[] clusterCounts) {
+        final int K = numClusters;
+        final int D = numInputDimensions;
+        double distanceSum = 0;
+        int i, k, n, kmin;
+        double dmin, d, diff;
+
+        for (i = 0; i < batchLength; i++) {
+            dmin = 9.99e+99; //Set dmin to a really big value
+            kmin = 0;
+            for (k = 0; k < K; k++) {
+                d = 0.0;
+                for (n = 0; n < D; n++) {
+                    diff = batch[i * D + n] - centroids[k * D + n];
+                    d += diff * diff;
+                }
+                if (d <= dmin) {
+                    dmin = d;
+                    kmin = k;
+                }
+            }
+            batchAssign[i] = kmin;
+            distanceSum += Math.sqrt(dmin);
+        }
+
+        for (i = 0; i < batchLength; i++) {
+            k = batchAssign[i];
+            clusterCounts[k]++;
+            final double eta = 1.0 / clusterCounts[k];
+            for (n = 0; n < D; n++) {
+                centroids[k * D + n] += eta * (batch[i * D + n] - centroids[k * D + n]);
+            }
+        }
+        return distanceSum;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+import DataStructures.QuantizedSequenceData;
+import DataStructures.TimeSeriesClassificationData;
+import Util.MatrixDouble;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An on-disk cache of quantized datasets. Each entry is keyed by the hash of
+ * the quantizer clusters (see KMeansQuantizer.getModelHash) and a hash of the
+ * contents of the source dataset, so retraining the quantizer or changing the
+ * data gives a new key and the old entry is never read again. Entries are
+ * evicted, least recently used first, when the cache directory grows past
+ * its maximum size.
+ *
+ * Entries are written to a temporary file and renamed into place, so several
+ * processes can share a cache directory.
+ *
+ * @author Пользователь
+ */
+public class QuantizedDataCache {
+
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;  //Default maximum size of the cache directory, in bytes
+    private static final int CACHE_VERSION = 1;             //Part of every key, change it when the entry format or the quantization changes
+    private static final String ENTRY_SUFFIX = ".qsd";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long STALE_TEMP_AGE = 60L * 60 * 1000;    //Temporary files older than this were left by a failed write
+    private static final int HASH_BUFFER_SIZE = 1 << 20;
+
+    private final File directory;
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private int numHits = 0;
+    private int numMisses = 0;
+
+    /**
+     * @param directory: the cache directory, created if it does not exist
+     */
+    public QuantizedDataCache(String directory) {
+        this.directory = new File(directory);
+    }
+
+    /**
+     * Sets the maximum total size of the entries in the cache directory. An
+     * entry larger than this is evicted as soon as it is stored.
+     */
+    public boolean setMaxSize(long maxSize) {
+        if (maxSize < 0) {
+            System.err.println("setMaxSize(long maxSize) - The maximum size can not be negative!");
+            return false;
+        }
+        this.maxSize = maxSize;
+        return true;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public int getNumHits() {
+        return numHits;
+    }
+
+    public int getNumMisses() {
+        return numMisses;
+    }
+
+    /**
+     * Returns the GRT time series file quantized with the quantizer. On a
+     * cache hit the file is only hashed, not parsed. On a miss it is loaded
+     * with TimeSeriesClassificationData.loadDatasetFromFile(String, int),
+     * quantized and stored.
+     *
+     * @return the quantized dataset, or null if the quantizer has not been
+     * trained or the file could not be loaded or quantized
+     */
+    public QuantizedSequenceData getQuantizedData(KMeansQuantizer quantizer, String filename, int numThreads) throws IOException {
+        String quantizerHash = quantizer.getModelHash();
+        if (quantizerHash == null) {
+            return null;
+        }
+        File entry = getEntry("file", quantizerHash, hashFile(filename));
+        QuantizedSequenceData quantizedData = loadEntry(entry);
+        if (quantizedData != null) {
+            return quantizedData;
+        }
+
+        TimeSeriesClassificationData data = new TimeSeriesClassificationData();
+        if (!data.loadDatasetFromFile(filename, numThreads)) {
+            return null;
+        }
+        return storeEntry(entry, quantizer.quantize(data));
+    }
+
+    /**
+     * Returns the dataset quantized with the quantizer, from the cache if it
+     * holds an entry for the same clusters and the same samples. This still
+     * hashes every frame of the dataset, which is much cheaper than
+     * quantizing it with a large codebook.
+     *
+     * @return the quantized dataset, or null if the quantizer has not been
+     * trained or the data could not be quantized
+     */
+    public QuantizedSequenceData getQuantizedData(KMeansQuantizer quantizer, TimeSeriesClassificationData data) throws IOException {
+        String quantizerHash = quantizer.getModelHash();
+        if (quantizerHash == null) {
+            return null;
+        }
+        File entry = getEntry("data", quantizerHash, hashData(data));
+        QuantizedSequenceData quantizedData = loadEntry(entry);
+        if (quantizedData != null) {
+            return quantizedData;
+        }
+        return storeEntry(entry, quantizer.quantize(data));
+    }
+
+    /**
+     * Deletes every entry in the cache directory.
+     */
+    public void clear() {
+        File[] files = listFiles();
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private File getEntry(String sourceType, String quantizerHash, String sourceHash) {
+        MessageDigest digest = newDigest();
+        digest.update((CACHE_VERSION + "|" + sourceType + "|" + quantizerHash + "|" + sourceHash).getBytes(StandardCharsets.UTF_8));
+        return new File(directory, toHex(digest.digest()) + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Loads an entry, deleting it if it can not be read.
+     *
+     * @return the entry, or null on a cache miss
+     */
+    private QuantizedSequenceData loadEntry(File entry) throws IOException {
+        if (!entry.isFile()) {
+            numMisses++;
+            return null;
+        }
+        QuantizedSequenceData quantizedData = QuantizedSequenceData.load(entry.getPath());
+        if (quantizedData == null) {
+            System.err.println("loadEntry(File entry) - Deleting the corrupt cache entry " + entry.getName() + "!");
+            entry.delete();
+            numMisses++;
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        numHits++;
+        return quantizedData;
+    }
+
+    /**
+     * Writes an entry to a temporary file, renames it into place, then evicts
+     * entries until the cache fits in its maximum size.
+     *
+     * @return quantizedData
+     */
+    private QuantizedSequenceData storeEntry(File entry, QuantizedSequenceData quantizedData) throws IOException {
+        if (quantizedData == null) {
+            return null;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            System.err.println("storeEntry(File entry, QuantizedSequenceData quantizedData) - Failed to create the cache directory " + directory + "!");
+            return quantizedData;
+        }
+
+        File temp = File.createTempFile(entry.getName(), TEMP_SUFFIX, directory);
+        try {
+            if (!quantizedData.save(temp.getPath())) {
+                return quantizedData;
+            }
+            try {
+                Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+        evict();
+        return quantizedData;
+    }
+
+    /**
+     * Deletes the least recently used entries until the total size of the
+     * entries is at most maxSize, and any temporary file left by a failed write.
+     */
+    private void evict() {
+        File[] files = listFiles();
+        final long[] lastModified = new long[files.length];
+        long totalSize = 0;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            if (files[i].getName().endsWith(TEMP_SUFFIX)) {
+                if (now - lastModified[i] > STALE_TEMP_AGE) {
+                    files[i].delete();
+                }
+                lastModified[i] = Long.MAX_VALUE;
+            } else {
+                totalSize += files[i].length();
+            }
+        }
+
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[a], lastModified[b]);
+            }
+        });
+        for (int i = 0; i < order.length && totalSize > maxSize; i++) {
+            File file = files[order[i]];
+            if (lastModified[order[i]] == Long.MAX_VALUE) {
+                break;
+            }
+            long size = file.length();
+            if (file.delete()) {
+                totalSize -= size;
+            }
+        }
+    }
+
+    /**
+     * Returns the entries and temporary files in the cache directory.
+     */
+    private File[] listFiles() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && (file.getName().endsWith(ENTRY_SUFFIX) || file.getName().endsWith(TEMP_SUFFIX));
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    /**
+     * Returns a SHA-256 hash of the contents of a file.
+     */
+    static String hashFile(String filename) throws IOException {
+        MessageDigest digest = newDigest();
+        FileChannel channel = new FileInputStream(filename).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns a SHA-256 hash of the class label and the frames of every sample
+     * of a dataset.
+     */
+    static String hashData(TimeSeriesClassificationData data) {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        buffer.putInt(data.getNumDimensions()).putInt(data.getNumSamples());
+        for (int i = 0; i < data.getNumSamples(); i++) {
+            MatrixDouble sample = data.get(i).getData();
+            if (buffer.remaining() < 12) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            buffer.putInt(data.get(i).getClassLabel()).putInt(sample.getNumRows()).putInt(sample.getNumCols());
+            for (int t = 0; t < sample.getNumRows(); t++) {
+                for (int n = 0; n < sample.getNumCols(); n++) {
+                    if (buffer.remaining() < 8) {
+                        buffer.flip();
+                        digest.update(buffer);
+                        buffer.clear();
+                    }
+                    buffer.putLong(Double.doubleToLongBits(sample.get(t, n)));
+                }
+            }
+        }
+        buffer.flip();
+        digest.update(buffer);
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+/**
+ * A lookup grid over the input range of a quantizer, for low dimensional
+ * frames such as 3 axis accelerometer data. The range is split into
+ * resolution cells per dimension, and each cell stores the clusters that can
+ * be the closest one to some point of the cell. Most cells only have one
+ * candidate, so most frames are quantized with a table lookup. The other cells
+ * compare the frame with their few candidates, and frames outside the range
+ * fall back to the brute-force search, so the result is always exactly that of
+ * QuantizerModel.nearestCluster.
+ *
+ * A cluster is a candidate of a cell if its smallest distance to the cell is
+ * not larger than the largest distance of some other cluster to the cell. The
+ * cells are widened slightly and the test has a small tolerance, so rounding
+ * can only add candidates, never drop the closest cluster.
+ *
+ * @author Пользователь
+ */
+class QuantizerGrid implements ClusterIndex {
+
+    private static final double CELL_MARGIN = 1.0e-6;      //Relative widening of the cells
+    private static final double BOUND_TOLERANCE = 1.0e-9;  //Relative tolerance of the candidate test
+
+    final QuantizerModel model;
+    final int resolution;       //Number of cells in each dimension
+    final double[] min;         //Lower end of the range in each dimension
+    final double[] width;       //Width of a cell in each dimension
+    final double[] invWidth;
+    final int[] table;          //The closest cluster of each cell, or -(offset+1) of its candidate list
+    final int[] lists;          //The candidate lists, each stored as its length followed by the clusters
+    final int numSingleCells;   //Number of cells with a single candidate
+
+    private QuantizerGrid(QuantizerModel model, int resolution, double[] min, double[] width, int[] table, int[] lists, int numSingleCells) {
+        this.model = model;
+        this.resolution = resolution;
+        this.min = min;
+        this.width = width;
+        this.table = table;
+        this.lists = lists;
+        this.numSingleCells = numSingleCells;
+        invWidth = new double[width.length];
+        for (int n = 0; n < width.length; n++) {
+            invWidth[n] = 1.0 / width[n];
+        }
+    }
+
+    /**
+     * Builds the finest grid over [min max] that fits in memoryBudget bytes.
+     *
+     * @return the grid, or null if not even a grid of 2 cells per dimension
+     * fits in the budget
+     */
+    static QuantizerGrid build(QuantizerModel model, double[] min, double[] max, long memoryBudget) {
+        final int D = model.numDimensions;
+
+        //Start with the table taking half the budget, the candidate lists usually take much less
+        long maxCells = Math.min(memoryBudget / 8, Integer.MAX_VALUE);
+        int resolution = (int) Math.floor(Math.pow(maxCells, 1.0 / D));
+        while (resolution > 1 && Math.pow(resolution, D) > maxCells) {
+            resolution--;
+        }
+
+        while (resolution >= 2) {
+            QuantizerGrid grid = build(model, min, max, resolution, memoryBudget);
+            if (grid != null) {
+                return grid;
+            }
+            resolution = Math.min(resolution - 1, (int) (resolution * 0.8));
+        }
+        return null;
+    }
+
+    private static QuantizerGrid build(QuantizerModel model, double[] min, double[] max, int resolution, long memoryBudget) {
+        final int D = model.numDimensions;
+        final int K = model.numClusters;
+        final double[] centroids = model.centroids;
+        int numCells = 1;
+        for (int n = 0; n < D; n++) {
+            numCells *= resolution;
+        }
+
+        double[] width = new double[D];
+        double[] low = new double[D];
+        double[] high = new double[D];
+        for (int n = 0; n < D; n++) {
+            width[n] = (max[n] - min[n]) / resolution;
+            if (!(width[n] > 0)) {
+                width[n] = 1.0;
+            }
+        }
+
+        int[] table = new int[numCells];
+        int[] lists = new int[Math.max(16, numCells / 8)];
+        int listsLength = 0;
+        int lastList = -1;
+        int numSingleCells = 0;
+        double[] minDist = new double[K];
+        int[] candidates = new int[K];
+        int[] cellIndex = new int[D];
+
+        for (int cell = 0; cell < numCells; cell++) {
+            //Bounds of the cell, cellIndex holds its index in each dimension with the last dimension changing fastest
+            for (int n = 0; n < D; n++) {
+                double margin = width[n] * CELL_MARGIN;
+                low[n] = min[n] + cellIndex[n] * width[n] - margin;
+                high[n] = min[n] + (cellIndex[n] + 1) * width[n] + margin;
+            }
+
+            //The smallest largest distance of any cluster to the cell bounds the distance to the closest cluster
+            double bound = Double.MAX_VALUE;
+            for (int k = 0; k < K; k++) {
+                double dMin = 0;
+                double dMax = 0;
+                for (int n = 0; n < D; n++) {
+                    double c = centroids[k * D + n];
+                    double below = low[n] - c;
+                    double above = c - high[n];
+                    double gap = below > 0 ? below : (above > 0 ? above : 0);
+                    double far = Math.max(Math.abs(c - low[n]), Math.abs(c - high[n]));
+                    dMin += gap * gap;
+                    dMax += far * far;
+                }
+                minDist[k] = dMin;
+                if (dMax < bound) {
+                    bound = dMax;
+                }
+            }
+            bound *= 1.0 + BOUND_TOLERANCE;
+
+            int numCandidates = 0;
+            for (int k = 0; k < K; k++) {
+                if (minDist[k] <= bound) {
+                    candidates[numCandidates++] = k;
+                }
+            }
+
+            if (numCandidates == 1) {
+                table[cell] = candidates[0];
+                numSingleCells++;
+            } else {
+                //Neighbouring cells often have the same candidates, so reuse the last list if it matches
+                boolean same = lastList >= 0 && lists[lastList] == numCandidates;
+                for (int c = 0; same && c < numCandidates; c++) {
+                    same = lists[lastList + 1 + c] == candidates[c];
+                }
+                if (!same) {
+                    if (listsLength + numCandidates + 1 > lists.length) {
+                        int[] newLists = new int[Math.max(lists.length * 2, listsLength + numCandidates + 1)];
+                        System.arraycopy(lists, 0, newLists, 0, listsLength);
+                        lists = newLists;
+                    }
+                    lastList = listsLength;
+                    lists[listsLength++] = numCandidates;
+                    System.arraycopy(candidates, 0, lists, listsLength, numCandidates);
+                    listsLength += numCandidates;
+                }
+                table[cell] = -(lastList + 1);
+            }
+
+            if (4L * (numCells + listsLength) > memoryBudget) {
+                return null;
+            }
+
+            //Move to the next cell
+            for (int n = D - 1; n >= 0; n--) {
+                if (++cellIndex[n] < resolution) {
+                    break;
+                }
+                cellIndex[n] = 0;
+            }
+        }
+
+        int[] trimmedLists = new int[listsLength];
+        System.arraycopy(lists, 0, trimmedLists, 0, listsLength);
+        return new QuantizerGrid(model, resolution, min.clone(), width, table, trimmedLists, numSingleCells);
+    }
+
+    @Override
+    public int nearestCluster(double[] frames, int offset) {
+        final int D = model.numDimensions;
+        int cell = 0;
+        for (int n = 0; n < D; n++) {
+            double u = (frames[offset + n] - min[n]) * invWidth[n];
+            if (!(u >= 0 && u <= resolution)) {
+                //Outside the grid, or NaN
+                return model.nearestCluster(frames, offset);
+            }
+            int i = (int) u;
+            if (i == resolution) {
+                i--;
+            }
+            cell = cell * resolution + i;
+        }
+
+        int value = table[cell];
+        if (value >= 0) {
+            return value;
+        }
+        int list = -(value + 1);
+        return model.nearestCandidate(frames, offset, lists, list + 1, list + 1 + lists[list]);
+    }
+
+    int getNumCells() {
+        return table.length;
+    }
+
+    long getMemorySize() {
+        return 4L * (table.length + lists.length);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package KMeans;
+
+import Util.MatrixDouble;
+
+/**
+ * An immutable, flat copy of the clusters of a KMeansQuantizer, used to find
+ * the closest cluster of a frame without going through MatrixDouble or
+ * allocating anything.
+ *
+ * @author Пользователь
+ */
+class QuantizerModel implements ClusterIndex {
+
+    final int numClusters;
+    final int numDimensions;
+    final double[] centroids;   //The clusters, stored row-major as centroids[k*numDimensions+n]
+    final Double[] symbols;     //The boxed quantized values, so the feature vector can be set without allocating
+
+    QuantizerModel(MatrixDouble clusters, int numClusters, int numDimensions) {
+        this.numClusters = numClusters;
+        this.numDimensions = numDimensions;
+        centroids = new double[numClusters * numDimensions];
+        symbols = new Double[numClusters];
+        for (int k = 0; k < numClusters; k++) {
+            for (int n = 0; n < numDimensions; n++) {
+                centroids[k * numDimensions + n] = clusters.get(k, n);
+            }
+            symbols[k] = (double) k;
+        }
+    }
+
+    /**
+     * Compares the frame with every cluster. Ties go to the lowest index.
+     */
+    @Override
+    public int nearestCluster(double[] frames, int offset) {
+        final int D = numDimensions;
+        double minDist = Double.MAX_VALUE;
+        int quantizedValue = 0;
+
+        for (int k = 0; k < numClusters; k++) {
+            //Compute the squared Euclidean distance
+            double d = 0.0;
+            final int base = k * D;
+            for (int i = 0; i < D; i++) {
+                double diff = frames[offset + i] - centroids[base + i];
+                d += diff * diff;
+            }
+
+            if (d < minDist) {
+                minDist = d;
+                quantizedValue = k;
+            }
+        }
+        return quantizedValue;
+    }
+
+    /**
+     * The same search restricted to the clusters listed in
+     * candidates[start..end), which must be in increasing order. If the
+     * closest cluster is one of the candidates this gives the same answer as
+     * nearestCluster.
+     */
+    int nearestCandidate(double[] frames, int offset, int[] candidates, int start, int end) {
+        final int D = numDimensions;
+        double minDist = Double.MAX_VALUE;
+        int quantizedValue = candidates[start];
+
+        for (int c = start; c < end; c++) {
+            final int k = candidates[c];
+            double d = 0.0;
+            final int base = k * D;
+            for (int i = 0; i < D; i++) {
+                double diff = frames[offset + i] - centroids[base + i];
+                d += diff * diff;
+            }
+
+            if (d < minDist) {
+                minDist = d;
+                quantizedValue = k;
+            }
+        }
+        return quantizedValue;
+    }
+}
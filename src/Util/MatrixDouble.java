@@ -8,19 +8,46 @@ package Util;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 
 /**
+ * A matrix of doubles stored in one contiguous array. Element (i,j) is at
+ * data[offset + i*rowStride + j*colStride], which is row-major with
+ * rowStride=cols and colStride=1 for a matrix that owns its data. Views
+ * (getRowView, getSubMatrixView, getTransposeView) share the array of the
+ * matrix they come from with their own offset and strides, so they cost no
+ * copy, and writes through a view are seen by the matrix and the other way
+ * round. Resizing or growing a view gives it its own array.
+ *
+ * The serialized form is still the one of the old jagged double[][] layout, so
+ * matrices saved before (for example in HMMQuantizer.ser) still load.
  *
  * @author Пользователь
  */
 public class MatrixDouble implements Serializable{
 
+    private static final long serialVersionUID = 1868374935506565476L;
+
+    //The serialized fields, those of the old jagged layout
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("rows", Integer.TYPE),
+        new ObjectStreamField("cols", Integer.TYPE),
+        new ObjectStreamField("capacity", Integer.TYPE),
+        new ObjectStreamField("dataPtr", double[][].class)
+    };
+
     protected int rows;                ///< The number of rows in the Matrix
     protected int cols;                ///< The number of columns in the Matrix
     protected int capacity;            ///< The actual capacity of the Matrix, this will be the number of rows, not the actual memory size
-    protected double[][] dataPtr;             ///< A pointer to the data
+    protected double[] data;           ///< The data, null if the matrix is empty
+    protected int offset;              ///< Position of element (0,0) in data
+    protected int rowStride;           ///< Distance in data between two consecutive rows
+    protected int colStride;           ///< Distance in data between two consecutive columns
 
     /**
      * Default Constructor
@@ -29,7 +56,7 @@ public class MatrixDouble implements Serializable{
         rows = 0;
         cols = 0;
         capacity = 0;
-        dataPtr = null;
+        data = null;
     }
 
     /**
@@ -41,10 +68,28 @@ public class MatrixDouble implements Serializable{
      * greater than zero
      */
     public MatrixDouble(int rows, int cols) {
-        dataPtr = null;
+        data = null;
         resize(rows, cols);
     }
 
+    /**
+     * Creates a matrix over the rows*cols values of data starting at offset,
+     * stored row-major. The array is not copied.
+     */
+    public static MatrixDouble wrap(double[] data, int offset, int rows, int cols) {
+        return new MatrixDouble(data, offset, rows, cols, cols, 1);
+    }
+
+    private MatrixDouble(double[] data, int offset, int rows, int cols, int rowStride, int colStride) {
+        this.data = data;
+        this.offset = offset;
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStride = rowStride;
+        this.colStride = colStride;
+        this.capacity = rows;
+    }
+
     public boolean resize(int r, int c) {
         //If the rows and cols are unchanged then do not resize the data
         if (r == rows && c == cols) {
@@ -55,23 +100,21 @@ public class MatrixDouble implements Serializable{
             rows = r;
             cols = c;
             capacity = r;
-            dataPtr = new double[rows][];
-
-            //Check to see if the memory was created correctly
-            for (int i = 0; i < rows; i++) {
-                dataPtr[i] = new double[cols];
-            }
+            data = new double[r * c];
+            offset = 0;
+            rowStride = c;
+            colStride = 1;
             return true;
         }
         return false;
     }
 
     public double get(int i, int j) {
-        return dataPtr[i][j];
+        return data[offset + i * rowStride + j * colStride];
     }
 
     public void set(double val, int i, int j) {
-        dataPtr[i][j] = val;
+        data[offset + i * rowStride + j * colStride] = val;
     }
 
     public int getNumRows() {
@@ -81,19 +124,148 @@ public class MatrixDouble implements Serializable{
     public ArrayList<Double> getRowVector(int r) {
         ArrayList<Double> rowVector = new ArrayList<Double>(cols);
         for (int c = 0; c < cols; c++) {
-            rowVector.add(c, dataPtr[r][c]);
+            rowVector.add(c, get(r, c));
         }
         return rowVector;
     }
 
+    /**
+     * Copies row r into dest, starting at destOffset.
+     */
+    public void getRow(int r, double[] dest, int destOffset) {
+        int index = offset + r * rowStride;
+        if (colStride == 1) {
+            System.arraycopy(data, index, dest, destOffset, cols);
+            return;
+        }
+        for (int c = 0; c < cols; c++) {
+            dest[destOffset + c] = data[index + c * colStride];
+        }
+    }
+
+    /**
+     * Copies cols values of src, starting at srcOffset, into row r.
+     */
+    public void setRow(int r, double[] src, int srcOffset) {
+        int index = offset + r * rowStride;
+        if (colStride == 1) {
+            System.arraycopy(src, srcOffset, data, index, cols);
+            return;
+        }
+        for (int c = 0; c < cols; c++) {
+            data[index + c * colStride] = src[srcOffset + c];
+        }
+    }
+
+    /**
+     * Copies column c into dest, starting at destOffset.
+     */
+    public void getColumn(int c, double[] dest, int destOffset) {
+        int index = offset + c * colStride;
+        for (int r = 0; r < rows; r++) {
+            dest[destOffset + r] = data[index + r * rowStride];
+        }
+    }
+
+    /**
+     * Copies the whole matrix into dest, row-major, starting at destOffset.
+     */
+    public void copyTo(double[] dest, int destOffset) {
+        if (isContiguous()) {
+            System.arraycopy(data, offset, dest, destOffset, rows * cols);
+            return;
+        }
+        for (int r = 0; r < rows; r++) {
+            getRow(r, dest, destOffset + r * cols);
+        }
+    }
+
+    /**
+     * Copies rows*cols values of src, row-major, starting at srcOffset, into the
+     * matrix.
+     */
+    public void copyFrom(double[] src, int srcOffset) {
+        if (isContiguous()) {
+            System.arraycopy(src, srcOffset, data, offset, rows * cols);
+            return;
+        }
+        for (int r = 0; r < rows; r++) {
+            setRow(r, src, srcOffset + r * cols);
+        }
+    }
+
+    /**
+     * Returns the matrix as a new row-major array.
+     */
+    public double[] toArray() {
+        double[] values = new double[rows * cols];
+        if (data != null) {
+            copyTo(values, 0);
+        }
+        return values;
+    }
+
+    /**
+     * Returns true if the rows*cols values are stored row-major with no gaps,
+     * from getOffset() in getData().
+     */
+    public boolean isContiguous() {
+        return colStride == 1 && (rowStride == cols || rows <= 1);
+    }
+
+    /**
+     * Returns the array the matrix is stored in, see getOffset, getRowStride
+     * and getColStride for the layout. This is the matrix's own storage, not a
+     * copy.
+     */
+    public double[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    public int getColStride() {
+        return colStride;
+    }
+
+    /**
+     * Returns a 1 x cols view of row r.
+     */
+    public MatrixDouble getRowView(int r) {
+        return getSubMatrixView(r, 0, 1, cols);
+    }
+
+    /**
+     * Returns a numRows x numCols view of the matrix starting at (row, col).
+     */
+    public MatrixDouble getSubMatrixView(int row, int col, int numRows, int numCols) {
+        if (row < 0 || col < 0 || numRows < 0 || numCols < 0 || row + numRows > rows || col + numCols > cols) {
+            throw new IndexOutOfBoundsException("getSubMatrixView(" + row + ", " + col + ", " + numRows + ", " + numCols + ") - Out of the bounds of a " + rows + "x" + cols + " matrix!");
+        }
+        return new MatrixDouble(data, offset + row * rowStride + col * colStride, numRows, numCols, rowStride, colStride);
+    }
+
+    /**
+     * Returns a cols x rows view of the transpose of the matrix.
+     */
+    public MatrixDouble getTransposeView() {
+        return new MatrixDouble(data, offset, cols, rows, colStride, rowStride);
+    }
+
     public boolean print() {
-        if (dataPtr == null) {
+        if (data == null) {
             return false;
         }
 
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
-                System.out.print(dataPtr[i][j] + "\t");
+                System.out.print(get(i, j) + "\t");
             }
             System.out.println();
         }
@@ -113,7 +285,7 @@ public class MatrixDouble implements Serializable{
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
                 ranges.add(new MinMax());
-                ranges.get(j).updateMinMax(dataPtr[i][j]);
+                ranges.get(j).updateMinMax(get(i, j));
             }
         }
         return ranges;
@@ -121,7 +293,7 @@ public class MatrixDouble implements Serializable{
 
     public boolean scale(double minTarget, double maxTarget) {
 
-        if (dataPtr == null) {
+        if (data == null) {
             return false;
         }
 
@@ -131,7 +303,7 @@ public class MatrixDouble implements Serializable{
     }
 
     public boolean scale(ArrayList<MinMax> ranges, double minTarget, double maxTarget) {
-        if (dataPtr == null) {
+        if (data == null) {
             return false;
         }
 
@@ -141,7 +313,7 @@ public class MatrixDouble implements Serializable{
 
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
-                dataPtr[i][j] = utilScale(dataPtr[i][j], ranges.get(j).minValue, ranges.get(j).maxValue, minTarget, maxTarget, false);
+                set(utilScale(get(i, j), ranges.get(j).minValue, ranges.get(j).maxValue, minTarget, maxTarget, false), i, j);
             }
         }
 
@@ -167,16 +339,22 @@ public class MatrixDouble implements Serializable{
     public void loadDataTxt(String fileName) throws Exception {
         BufferedReader reader = new BufferedReader(new FileReader(fileName));
 
-        rows = Integer.parseInt(reader.readLine());
-        cols = Integer.parseInt(reader.readLine());
+        int r = Integer.parseInt(reader.readLine());
+        int c = Integer.parseInt(reader.readLine());
 
-        dataPtr = new double[rows][cols];
+        rows = r;
+        cols = c;
+        capacity = r;
+        data = new double[r * c];
+        offset = 0;
+        rowStride = c;
+        colStride = 1;
         for (int i = 0; i < rows; i++) {
             String word = reader.readLine();
             System.out.println(word);
             String[] strData = word.split(" ");
             for (int j = 0; j < cols; j++) {
-                dataPtr[i][j] = Double.parseDouble(strData[j]);
+                data[i * cols + j] = Double.parseDouble(strData[j]);
             }
         }
     }
@@ -184,7 +362,7 @@ public class MatrixDouble implements Serializable{
     public void clear() {
         rows = 0;
         cols = 0;
-        dataPtr = null;
+        data = null;
     }
 
     /**
@@ -193,62 +371,183 @@ public class MatrixDouble implements Serializable{
      * columns in the Matrix, unless the Matrix size has not been set, in which
      * case the new sample size will define the number of columns in the Matrix.
      *
+     * When the capacity is reached it is doubled, so adding T rows one at a
+     * time takes O(T) time and O(log T) allocations. Call trimToSize to release
+     * the unused capacity.
+     *
      * @param std::vector<T> &sample: the new column vector you want to add to
      * the end of the Matrix. Its size should match the number of columns in the
      * Matrix
      * @return returns true or false, indicating if the push was successful
      */
     public boolean push_back(ArrayList<Double> sample) {
-        //If there is no data, but we know how many cols are in a sample then we simply create a new buffer of size 1 and add the sample
-        if (dataPtr == null) {
-            cols = (int) sample.size();
-            if (!resize(1, cols)) {
+        //If there is no data, then the sample size defines the number of columns
+        if (data == null) {
+            if (sample.size() == 0) {
                 clear();
                 return false;
             }
-            for (int j = 0; j < cols; j++) {
-                dataPtr[0][j] = sample.get(j);
-            }
+            cols = sample.size();
+            rows = 0;
+        } else if (sample.size() != cols) {
+            //If there is data and the sample size does not match the number of columns then return false
+            return false;
+        }
+
+        //Make sure there is room for one more row, then add the new sample at the end
+        ensureCapacity(rows + 1);
+        for (int j = 0; j < cols; j++) {
+            set(sample.get(j), rows, j);
+        }
+
+        //Increment the number of rows
+        rows++;
+
+        //Finally return true to signal that the data was added correctly
+        return true;
+    }
+
+    /**
+     * Adds numRows rows stored row-major in values, starting at valuesOffset,
+     * to the end of the Matrix. The rows are copied with at most one
+     * allocation.
+     *
+     * @param numCols: the number of values in each row, must match the number
+     * of columns in the Matrix unless the Matrix size has not been set
+     * @return returns true or false, indicating if the rows were added
+     */
+    public boolean append(double[] values, int valuesOffset, int numRows, int numCols) {
+        if (numRows < 0 || numCols <= 0 || values.length - valuesOffset < numRows * numCols) {
+            System.err.println("append(double[] values, int valuesOffset, int numRows, int numCols) - The values do not hold " + numRows + "x" + numCols + " values!");
+            return false;
+        }
+        if (data != null && numCols != cols) {
+            System.err.println("append(double[] values, int valuesOffset, int numRows, int numCols) - The number of columns (" + numCols + ") does not match that of the matrix (" + cols + ")!");
+            return false;
+        }
+        if (numRows == 0) {
             return true;
         }
+        if (data == null) {
+            cols = numCols;
+            rows = 0;
+        }
 
-        //If there is data and the sample size does not match the number of columns then return false
-        if (sample.size() != cols) {
+        ensureCapacity(rows + numRows);
+        for (int i = 0; i < numRows; i++) {
+            setRow(rows + i, values, valuesOffset + i * cols);
+        }
+        rows += numRows;
+        return true;
+    }
+
+    /**
+     * Adds all the rows of other to the end of the Matrix.
+     */
+    public boolean append(MatrixDouble other) {
+        if (other.data == null || other.rows == 0) {
+            return true;
+        }
+        if (data != null && other.cols != cols) {
+            System.err.println("append(MatrixDouble other) - The number of columns (" + other.cols + ") does not match that of the matrix (" + cols + ")!");
             return false;
         }
+        //Copy first, in case other is a view of this matrix
+        return append(other.toArray(), 0, other.rows, other.cols);
+    }
 
-        //Check to see if we have reached the capacity, if not then simply add the new data
-        if (rows < capacity) {
-            //Add the new sample at the end
-            for (int j = 0; j < cols; j++) {
-                dataPtr[rows][j] = sample.get(j);
-            }
+    /**
+     * Makes room for at least minCapacity rows without changing the content of
+     * the Matrix. The number of columns must be set.
+     */
+    public void reserve(int minCapacity) {
+        if (cols > 0) {
+            ensureCapacity(minCapacity);
+        }
+    }
 
-        } else { //Otherwise we copy the existing data from the data ptr into a new buffer of size (rows+1) and add the sample at the end
-            double[][] tempDataPtr = new double[rows + 1][cols];
+    /**
+     * Releases the capacity beyond the current number of rows.
+     */
+    public void trimToSize() {
+        if (data != null && rows > 0 && capacity > rows) {
+            double[] tempData = new double[rows * cols];
+            copyTo(tempData, 0);
+            setStorage(tempData, rows);
+        }
+    }
 
-            //Copy the original data
-            for (int i = 0; i < rows; i++) {
-                for (int j = 0; j < cols; j++) {
-                    tempDataPtr[i][j] = dataPtr[i][j];
-                }
-            }
+    public int getCapacity() {
+        return capacity;
+    }
 
-            //Add the new sample at the end
-            for (int j = 0; j < cols; j++) {
-                tempDataPtr[rows][j] = sample.get(j);
-            }
+    /**
+     * Grows the storage, if needed, so it holds at least minCapacity rows in a
+     * row-major array owned by this matrix. The capacity at least doubles each
+     * time it grows.
+     */
+    private void ensureCapacity(int minCapacity) {
+        if (data != null && minCapacity <= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(minCapacity, data == null ? 0 : capacity * 2);
+        double[] tempData = new double[newCapacity * cols];
 
-            dataPtr = tempDataPtr;
+        //Copy the original data
+        if (data != null && rows > 0) {
+            copyTo(tempData, 0);
+        }
+        setStorage(tempData, newCapacity);
+    }
 
-            //Increment the capacity so it matches the number of rows
-            capacity++;
+    private void setStorage(double[] newData, int newCapacity) {
+        data = newData;
+        offset = 0;
+        rowStride = cols;
+        colStride = 1;
+        capacity = newCapacity;
+    }
+
+    /**
+     * Writes the matrix in the old jagged layout.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        double[][] dataPtr = null;
+        if (data != null) {
+            dataPtr = new double[rows][cols];
+            for (int i = 0; i < rows; i++) {
+                getRow(i, dataPtr[i], 0);
+            }
         }
 
-        //Increment the number of rows
-        rows++;
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("rows", rows);
+        fields.put("cols", cols);
+        fields.put("capacity", rows);
+        fields.put("dataPtr", dataPtr);
+        out.writeFields();
+    }
 
-        //Finally return true to signal that the data was added correctly
-        return true;
+    /**
+     * Reads a matrix written in the jagged layout, by this class or by the old
+     * one, into a contiguous array.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        rows = fields.get("rows", 0);
+        cols = fields.get("cols", 0);
+        double[][] dataPtr = (double[][]) fields.get("dataPtr", null);
+
+        capacity = rows;
+        offset = 0;
+        rowStride = cols;
+        colStride = 1;
+        data = null;
+        if (dataPtr != null) {
+            data = new double[rows * cols];
+            for (int i = 0; i < Math.min(rows, dataPtr.length); i++) {
+                System.arraycopy(dataPtr[i], 0, data, i * cols, Math.min(cols, dataPtr[i].length));
+            }
+        }
     }
 }
@@ -5,6 +5,7 @@
  */
 package hmm;
 
+import DataStructures.QuantizedSequenceData;
 import DataStructures.TimeSeriesClassificationData;
 import Util.MatrixDouble;
 import static hmm.HMMModelTipes.*;
@@ -12,8 +13,10 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Random;
 
 /**
  *
@@ -21,6 +24,8 @@ import java.util.ArrayList;
  */
 public class HMM implements Serializable{
 
+    private static final long serialVersionUID = 6230093067382567213L;
+
     //Variables for all the HMMs
     protected boolean trained = false;
     protected boolean useScaling = false;
@@ -37,6 +42,9 @@ public class HMM implements Serializable{
     protected int numRandomTrainingIterations;
     protected double minImprovement = 1.0e-2;  //The minimum improvement value for each model during training
     protected boolean useNullRejection = false;
+    protected int numTrainingThreads = 1;    //The number of threads each model uses for the random restarts and the Baum-Welch E-step
+    protected boolean useRandomSeed = false;
+    protected long randomSeed = 0;           //The seed used to initialise the models, only used if useRandomSeed is true
 
     protected double bestDistance;
     protected double maxLikelihood;
@@ -47,6 +55,7 @@ public class HMM implements Serializable{
 
     int[] classLabels = null;
     ArrayList<HiddenMarkovModel> models = new ArrayList<HiddenMarkovModel>();
+    transient volatile HMMPackedModels packedModels = null;    //All the models packed for single pass scoring, built on the first predict
 
     //static RegisterClassifierModule< HMM> registerModule;
     public boolean setNumStates(int numStates) {
@@ -126,6 +135,28 @@ public class HMM implements Serializable{
         return false;
     }
 
+    public boolean setNumTrainingThreads(int numTrainingThreads) {
+
+        if (numTrainingThreads > 0) {
+            this.numTrainingThreads = numTrainingThreads;
+            return true;
+        }
+
+        System.err.println("setNumTrainingThreads( int numTrainingThreads) - The number of training threads must be greater than zero!");
+        return false;
+    }
+
+    /**
+     * Sets the seed used to initialise the models, so that training on the same
+     * data gives the same models. Each class model is seeded with randomSeed
+     * plus its class index.
+     */
+    public boolean setRandomSeed(long randomSeed) {
+        this.randomSeed = randomSeed;
+        this.useRandomSeed = true;
+        return true;
+    }
+
     public boolean train(TimeSeriesClassificationData trainingData) {
 
         clear();
@@ -142,34 +173,79 @@ public class HMM implements Serializable{
 
         //Reset the HMM
         numInputDimensions = trainingData.getNumDimensions();
-        numClasses = trainingData.getNumClasses();
+
+        //Convert the training data of each class into a list of observation sequences
+        final int K = trainingData.getNumClasses();
+        int[] labels = new int[K];
+        int[][][] classSequences = new int[K][][];
+        for (int k = 0; k < K; k++) {
+            labels[k] = trainingData.getClassTracker().get(k).classLabel;
+            if ((classSequences[k] = convertDataToObservationSequence(trainingData, labels[k])) == null) {
+                return false;
+            }
+        }
+
+        return trainModels(labels, classSequences);
+    }
+
+    /**
+     * Trains the HMM on quantized data, reading the symbols straight from the
+     * compact dataset. The symbols of the data must all be valid symbols of
+     * the HMM, so it can not have more symbols than the HMM.
+     */
+    public boolean train(QuantizedSequenceData trainingData) {
+
+        clear();
+
+        if (trainingData.getNumSamples() == 0) {
+            System.err.println("train(QuantizedSequenceData trainingData) - There are no training samples to train the HMM classifer!");
+            return false;
+        }
+
+        if (trainingData.getNumSymbols() > numSymbols) {
+            System.err.println("train(QuantizedSequenceData trainingData) - The training data has more symbols (" + trainingData.getNumSymbols() + ") than the HMM (" + numSymbols + ")!");
+            return false;
+        }
+
+        //Reset the HMM
+        numInputDimensions = 1;
+
+        final int K = trainingData.getNumClasses();
+        int[] labels = new int[K];
+        int[][][] classSequences = new int[K][][];
+        for (int k = 0; k < K; k++) {
+            labels[k] = trainingData.getClassTracker().get(k).classLabel;
+            classSequences[k] = trainingData.getClassSequences(labels[k]);
+        }
+
+        return trainModels(labels, classSequences);
+    }
+
+    /**
+     * Trains one model per class on its observation sequences, then computes
+     * the null rejection thresholds.
+     */
+    private boolean trainModels(int[] labels, int[][][] classSequences) {
+        numClasses = labels.length;
         models.ensureCapacity(numClasses);
-        classLabels = new int[numClasses];
+        classLabels = labels;
 
         //Init the models
         for (int k = 0; k < numClasses; k++) {
             models.add(k, new HiddenMarkovModel());
+            if (useRandomSeed) {
+                models.get(k).random = new Random(randomSeed + k);
+            }
             models.get(k).resetModel(numStates, numSymbols, modelType, delta);
             models.get(k).maxNumIter = maxNumIter;
             models.get(k).minImprovement = minImprovement;
+            models.get(k).numThreads = numTrainingThreads;
         }
 
         //Train each of the models
         for (int k = 0; k < numClasses; k++) {
-            //Get the class ID of this gesture
-            int classID = trainingData.getClassTracker().get(k).classLabel;
-            classLabels[k] = classID;
-
-            //Convert this classes training data into a list of observation sequences
-            TimeSeriesClassificationData classData = trainingData.getClassData(classID);
-            int[][] observationSequences = null;
-            if ((observationSequences = convertDataToObservationSequence(classData)) == null) {
-                return false;
-            }
-
-            //Train the model
-            if (!models.get(k).train(observationSequences)) {
-                System.err.println("train_(TimeSeriesClassificationData &trainingData) - Failed to train HMM for class " + classID);
+            if (!models.get(k).train(classSequences[k])) {
+                System.err.println("train_(TimeSeriesClassificationData &trainingData) - Failed to train HMM for class " + classLabels[k]);
                 return false;
             }
         }
@@ -178,16 +254,7 @@ public class HMM implements Serializable{
         nullRejectionThresholds = new double[numClasses];
 
         for (int k = 0; k < numClasses; k++) {
-            //Get the class ID of this gesture
-            int classID = trainingData.getClassTracker().get(k).classLabel;
-            classLabels[k] = classID;
-
-            //Convert this classes training data into a list of observation sequences
-            TimeSeriesClassificationData classData = trainingData.getClassData(classID);
-            int[][] observationSequences = null;
-            if ((observationSequences = convertDataToObservationSequence(classData)) == null) {
-                return false;
-            }
+            int[][] observationSequences = classSequences[k];
 
             //Test the model
             double loglikelihood = 0;
@@ -205,6 +272,30 @@ public class HMM implements Serializable{
         return true;
     }
 
+    /**
+     * Converts the samples of one class of data into observation sequences,
+     * reading them through the class index of data instead of building a
+     * dataset for the class.
+     */
+    public int[][] convertDataToObservationSequence(TimeSeriesClassificationData data, int classLabel) {
+
+        int[][] observationSequences = new int[data.getNumClassSamples(classLabel)][];
+
+        for (int i = 0; i < observationSequences.length; i++) {
+            MatrixDouble timeseries = data.getClassSample(classLabel, i).getData();
+            observationSequences[i] = new int[timeseries.getNumRows()];
+            for (int j = 0; j < timeseries.getNumRows(); j++) {
+                if (timeseries.get(j, 0) >= numSymbols) {
+                    System.err.println("train(TimeSeriesClassificationData &trainingData) - Found an observation sequence with a value outside of the symbol range! Value: " + timeseries.get(j, 0));
+                    return null;
+                }
+                observationSequences[i][j] = (int) timeseries.get(j, 0);
+            }
+        }
+
+        return observationSequences;
+    }
+
     public int[][] convertDataToObservationSequence(TimeSeriesClassificationData classData) {
 
         int[][] observationSequences = new int[classData.getNumSamples()][];
@@ -226,6 +317,7 @@ public class HMM implements Serializable{
 
     private void clear() {
         models.clear();
+        packedModels = null;
     }
 
     public boolean predict(MatrixDouble timeseries) {
@@ -254,41 +346,163 @@ public class HMM implements Serializable{
             classDistances = new double[numClasses];
         }
 
-        bestDistance = -99e+99;
-        int bestIndex = 0;
-        double sum = 0;
-        for (int k = 0; k < numClasses; k++) {
-            classDistances[k] = models.get(k).predict(observationSequence);
+        //Score every class in one pass over the sequence
+        getPackedModels().predict(observationSequence, classDistances);
+        updatePrediction();
 
-            //Set the class likelihood as the antilog of the class distances
-            classLikelihoods[k] = antilog(classDistances[k]);
+        return true;
+    }
 
-            //The loglikelihood values are negative so we want the values closest to 0
-            if (classDistances[k] > bestDistance) {
-                bestDistance = classDistances[k];
-                bestIndex = k;
-            }
+    /**
+     * Predicts the class of sample i of quantized data, reading its symbols
+     * straight from the compact dataset. The results are read with the same
+     * getters as after predict(MatrixDouble).
+     */
+    public boolean predict(QuantizedSequenceData data, int i) {
+        if (data.getLength(i) == 0) {
+            System.err.println("predict(QuantizedSequenceData data, int i) - The observation sequence is empty!");
+            return false;
+        }
 
-            sum += classLikelihoods[k];
+        //The symbols only need checking if the data has more symbols than the HMM
+        if (data.getNumSymbols() > numSymbols) {
+            for (int t = 0; t < data.getLength(i); t++) {
+                if (data.getSymbol(i, t) >= numSymbols) {
+                    System.err.println("predict(QuantizedSequenceData data, int i) - The new observation is not a valid symbol! It should be in the range [0 numSymbols-1]");
+                    return false;
+                }
+            }
         }
 
-        //Turn the class distances into proper likelihoods
-        for (int k = 0; k < numClasses; k++) {
-            classLikelihoods[k] /= sum;
+        if (classLikelihoods.length != numClasses) {
+            classLikelihoods = new double[numClasses];
+        }
+        if (classDistances.length != numClasses) {
+            classDistances = new double[numClasses];
         }
 
+        getPackedModels().predict(data, i, classDistances);
+        updatePrediction();
+
+        return true;
+    }
+
+    private void updatePrediction() {
+        int bestIndex = computeClassLikelihoods(classDistances, classLikelihoods);
+        bestDistance = classDistances[ bestIndex];
         maxLikelihood = classLikelihoods[ bestIndex];
-        predictedClassLabel = classLabels[ bestIndex];
+        predictedClassLabel = getClassLabel(bestIndex, maxLikelihood);
+    }
+
+    /**
+     * Classifies a quantized time series without changing any state of this
+     * HMM, so a trained HMM can be shared by any number of threads calling
+     * classify at the same time. Unlike predict, the result is returned as an
+     * immutable object rather than stored in this HMM.
+     *
+     * @param timeseries: the quantized time series, with one column
+     * @return the prediction, or null if the HMM is not trained or the time
+     * series is not valid
+     */
+    public HMMPrediction classify(MatrixDouble timeseries) {
+        if (timeseries.getNumCols() != 1) {
+            System.err.println("classify(MatrixDouble &timeseries) The number of columns in the input matrix must be 1. It is: " + timeseries.getNumCols());
+            return null;
+        }
+
+        final int M = timeseries.getNumRows();
+        int[] observationSequence = new int[M];
+        for (int i = 0; i < M; i++) {
+            observationSequence[i] = (int) timeseries.get(i, 0);
+        }
+        return classify(observationSequence);
+    }
 
-        if (useNullRejection) {
-            if (maxLikelihood > nullRejectionThresholds[ bestIndex]) {
-                predictedClassLabel = classLabels[ bestIndex];
-            } else {
-                predictedClassLabel = 0;
+    /**
+     * Classifies a quantized observation sequence without changing any state
+     * of this HMM. This is thread safe.
+     *
+     * @param observationSequence: the quantized observation sequence
+     * @return the prediction, or null if the HMM is not trained or the
+     * sequence is not valid
+     */
+    public HMMPrediction classify(int[] observationSequence) {
+        if (!trained) {
+            System.err.println("classify(int[] observationSequence) - The model has not been trained!");
+            return null;
+        }
+
+        if (observationSequence.length == 0) {
+            System.err.println("classify(int[] observationSequence) - The observation sequence is empty!");
+            return null;
+        }
+
+        for (int i = 0; i < observationSequence.length; i++) {
+            if (observationSequence[i] < 0 || observationSequence[i] >= numSymbols) {
+                System.err.println("classify(int[] observationSequence) - The new observation is not a valid symbol! It should be in the range [0 numSymbols-1]");
+                return null;
             }
         }
 
-        return true;
+        double[] distances = new double[numClasses];
+        double[] likelihoods = new double[numClasses];
+        getPackedModels().predict(observationSequence, distances);
+
+        int bestIndex = computeClassLikelihoods(distances, likelihoods);
+        return new HMMPrediction(getClassLabel(bestIndex, likelihoods[bestIndex]), likelihoods[bestIndex], likelihoods, distances);
+    }
+
+    /**
+     * Gets the class models packed for single pass scoring, packing them on
+     * first use. The packed models are immutable, so if two threads race here
+     * they both build an identical copy and either one can be kept.
+     */
+    HMMPackedModels getPackedModels() {
+        HMMPackedModels packed = packedModels;
+        if (packed == null) {
+            packed = new HMMPackedModels(models, numSymbols, classLabels, useNullRejection, nullRejectionThresholds);
+            packedModels = packed;
+        }
+        return packed;
+    }
+
+    /**
+     * Finds the most likely state path of an observation sequence through the
+     * model of one class, using the Viterbi algorithm. The path and its log
+     * score are stored in the workspace, which can be reused across calls so
+     * decoding many sequences does not allocate.
+     *
+     * @param classLabel: the label of the class model to decode with
+     * @param observationSequence: the quantized observation sequence
+     * @param workspace: the buffers used for the decode and the result
+     * @return true if the sequence was decoded, false otherwise
+     */
+    public boolean viterbi(int classLabel, int[] observationSequence, HMMViterbiWorkspace workspace) {
+        if (!trained) {
+            System.err.println("viterbi(int classLabel, int[] observationSequence) - The model has not been trained!");
+            return false;
+        }
+
+        int classIndex = -1;
+        for (int k = 0; k < numClasses; k++) {
+            if (classLabels[k] == classLabel) {
+                classIndex = k;
+                break;
+            }
+        }
+        if (classIndex == -1) {
+            System.err.println("viterbi(int classLabel, int[] observationSequence) - Unknown class label: " + classLabel);
+            return false;
+        }
+
+        for (int i = 0; i < observationSequence.length; i++) {
+            if (observationSequence[i] < 0 || observationSequence[i] >= numSymbols) {
+                System.err.println("viterbi(int classLabel, int[] observationSequence) - The observation is not a valid symbol! It should be in the range [0 numSymbols-1]");
+                return false;
+            }
+        }
+
+        return models.get(classIndex).viterbi(observationSequence, workspace);
     }
 
     public int getPredictedClassLabel() {
@@ -319,7 +533,90 @@ public class HMM implements Serializable{
         return 0;
     }
 
-    private double antilog(double d) {
+    /**
+     * Turns the class distances (the log likelihoods of each class model) into
+     * normalised class likelihoods.
+     *
+     * @param classDistances: the log likelihood of each class model
+     * @param classLikelihoods: the buffer the likelihoods are written to
+     * @return the index of the best class
+     */
+    static int computeClassLikelihoods(double[] classDistances, double[] classLikelihoods) {
+        double bestDistance = -99e+99;
+        int bestIndex = 0;
+        double sum = 0;
+        for (int k = 0; k < classDistances.length; k++) {
+            //Set the class likelihood as the antilog of the class distances
+            classLikelihoods[k] = antilog(classDistances[k]);
+
+            //The loglikelihood values are negative so we want the values closest to 0
+            if (classDistances[k] > bestDistance) {
+                bestDistance = classDistances[k];
+                bestIndex = k;
+            }
+
+            sum += classLikelihoods[k];
+        }
+
+        //Turn the class distances into proper likelihoods
+        for (int k = 0; k < classDistances.length; k++) {
+            classLikelihoods[k] /= sum;
+        }
+        return bestIndex;
+    }
+
+    /**
+     * Gets the class label for the best class, applying the null rejection
+     * threshold if null rejection is enabled.
+     */
+    int getClassLabel(int bestIndex, double maxLikelihood) {
+        if (isNullRejected(bestIndex, maxLikelihood, useNullRejection, nullRejectionThresholds)) {
+            return 0;
+        }
+        return classLabels[ bestIndex];
+    }
+
+    /**
+     * Returns true if the best class is null rejected, that is if null
+     * rejection is enabled and the likelihood of the best class is not above
+     * its threshold.
+     *
+     * @param bestIndex: the index of the best class
+     * @param maxLikelihood: the normalised likelihood of the best class
+     * @param useNullRejection: true if null rejection is enabled
+     * @param nullRejectionThresholds: the threshold of each class, only read if
+     * null rejection is enabled
+     */
+    static boolean isNullRejected(int bestIndex, double maxLikelihood, boolean useNullRejection, double[] nullRejectionThresholds) {
+        return useNullRejection && !(maxLikelihood > nullRejectionThresholds[ bestIndex]);
+    }
+
+    /**
+     * Creates a session for recognising a live stream of quantized symbols,
+     * one symbol at a time, with every class model of this HMM.
+     *
+     * @return the new session, or null if the HMM has not been trained
+     */
+    public HMMSession createSession() {
+        if (!trained) {
+            System.err.println("createSession() - The model has not been trained!");
+            return null;
+        }
+        return new HMMSession(this);
+    }
+
+    /**
+     * Reads the HMM, setting the number of training threads to its default for
+     * streams written before it was serialized.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (numTrainingThreads < 1) {
+            numTrainingThreads = 1;
+        }
+    }
+
+    private static double antilog(double d) {
         return Math.exp(d);
     }
 
@@ -0,0 +1,407 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hmm;
+
+import DataStructures.QuantizedSequenceData;
+import KMeans.KMeansQuantizer;
+import Util.MatrixDouble;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A trained quantizer and HMM stored together in one binary file and read
+ * through a memory map. The codebook is read straight from the map, and the
+ * models, which are already packed, are copied out of it in one bulk read each
+ * and scored by HMMPackedModels like the models of an HMM. Nothing is parsed
+ * or deserialized. Only what is needed for scoring is stored, none of the
+ * training state.
+ *
+ * The file is little-endian and holds, in order:
+ * <ul>
+ * <li>a fixed header: magic, version, numClusters, numDimensions, numClasses,
+ * numSymbols, the number of emission rows, totalNumStates, the number of
+ * transitions and useNullRejection (ints)</li>
+ * <li>the label, number of states, lower band and upper band of each class
+ * model (ints), padded to a multiple of 8 bytes</li>
+ * <li>the null rejection threshold of each class, the clusters, then the
+ * transitions, emissions and priors of every class model packed as in
+ * HMMPackedModels (doubles)</li>
+ * </ul>
+ *
+ * A bundle is never modified once opened, so one instance can be used by any
+ * number of threads.
+ *
+ * @author Пользователь
+ */
+public class HMMModelBundle {
+
+    private static final int MAGIC = 0x47525448;                //"GRTH"
+    private static final int VERSION = 1;
+    private static final int FIXED_HEADER_SIZE = 40;
+
+    private int numClusters;
+    private int numDimensions;
+    private DoubleBuffer centroids;     //centroids[k*numDimensions+n]
+    private HMMPackedModels models;     //The class models, read from the map
+
+    private final ThreadLocal<double[]> frameBuffer = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[numDimensions];
+        }
+    };
+
+    private HMMModelBundle() {
+    }
+
+    /**
+     * Writes a trained quantizer and a trained HMM to a bundle file.
+     *
+     * @return true if the bundle was saved, false otherwise
+     */
+    public static boolean save(String filename, KMeansQuantizer quantizer, HMM hmm) throws IOException {
+        if (!hmm.trained) {
+            System.err.println("save(String filename, KMeansQuantizer quantizer, HMM hmm) - The HMM has not been trained!");
+            return false;
+        }
+        double[] clusters = quantizer.getCentroids();
+        if (clusters == null) {
+            return false;
+        }
+
+        HMMPackedModels packed = hmm.getPackedModels();
+        if (quantizer.getNumClusters() > packed.numInputSymbols) {
+            System.err.println("save(String filename, KMeansQuantizer quantizer, HMM hmm) - The quantizer has more clusters (" + quantizer.getNumClusters() + ") than the HMM has symbols (" + packed.numInputSymbols + ")!");
+            return false;
+        }
+        final int K = packed.numModels;
+        if (K != hmm.numClasses) {
+            System.err.println("save(String filename, KMeansQuantizer quantizer, HMM hmm) - The number of models does not match the number of classes!");
+            return false;
+        }
+        if (packed.numInputSymbols > packed.numSymbols) {
+            System.err.println("save(String filename, KMeansQuantizer quantizer, HMM hmm) - The HMM has more symbols than its models!");
+            return false;
+        }
+        final long dataOffset = getDataOffset(K);
+        final long fileSize = dataOffset + 8L * (K + clusters.length + packed.aT.length + packed.bT.length + packed.pi.length);
+        if (fileSize > Integer.MAX_VALUE) {
+            System.err.println("save(String filename, KMeansQuantizer quantizer, HMM hmm) - The bundle is larger than 2 GB!");
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) fileSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(quantizer.getNumClusters()).putInt(quantizer.getNumInputDimensions());
+        buffer.putInt(K).putInt(packed.numInputSymbols).putInt(packed.numSymbols).putInt(packed.totalNumStates);
+        buffer.putInt(packed.aT.length).putInt(packed.useNullRejection ? 1 : 0);
+        for (int k = 0; k < K; k++) {
+            buffer.putInt(packed.classLabels[k]);
+        }
+        for (int k = 0; k < K; k++) {
+            buffer.putInt(packed.numStates[k]);
+        }
+        for (int k = 0; k < K; k++) {
+            buffer.putInt(packed.lowerBand[k]);
+        }
+        for (int k = 0; k < K; k++) {
+            buffer.putInt(packed.upperBand[k]);
+        }
+        buffer.position((int) dataOffset);
+        for (int k = 0; k < K; k++) {
+            buffer.putDouble(packed.nullRejectionThresholds != null ? packed.nullRejectionThresholds[k] : 0.0);
+        }
+        DoubleBuffer values = buffer.asDoubleBuffer();
+        values.put(clusters).put(packed.aT).put(packed.bT).put(packed.pi);
+        buffer.position(0);
+
+        FileChannel channel;
+        try {
+            channel = new FileOutputStream(filename).getChannel();
+        } catch (FileNotFoundException ex) {
+            System.err.println("save(String filename, KMeansQuantizer quantizer, HMM hmm) - FILE NOT OPEN!");
+            return false;
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            channel.close();
+        }
+        return true;
+    }
+
+    private static long getDataOffset(int numClasses) {
+        return (FIXED_HEADER_SIZE + 16L * numClasses + 7) & ~7L;
+    }
+
+    /**
+     * Opens a bundle file, reading its header and models and mapping the
+     * codebook.
+     *
+     * @return the bundle, or null if the file could not be opened or is not a
+     * valid bundle file
+     */
+    public static HMMModelBundle open(String filename) throws IOException {
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(filename, "r");
+        } catch (FileNotFoundException ex) {
+            System.err.println("open(String filename) - FILE NOT OPEN!");
+            return null;
+        }
+
+        FileChannel channel = file.getChannel();
+        try {
+            final long fileSize = channel.size();
+            if (fileSize < FIXED_HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+                System.err.println("open(String filename) - The size of the file does not match a bundle file!");
+                return null;
+            }
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize).order(ByteOrder.LITTLE_ENDIAN);
+            if (map.getInt() != MAGIC) {
+                System.err.println("open(String filename) - Failed to find file header!");
+                return null;
+            }
+            int version = map.getInt();
+            if (version != VERSION) {
+                System.err.println("open(String filename) - Unsupported file version " + version + "!");
+                return null;
+            }
+
+            HMMModelBundle bundle = new HMMModelBundle();
+            bundle.numClusters = map.getInt();
+            bundle.numDimensions = map.getInt();
+            final int K = map.getInt();
+            final int numSymbols = map.getInt();
+            final int numEmissionRows = map.getInt();
+            final int totalNumStates = map.getInt();
+            final int numTransitions = map.getInt();
+            final boolean useNullRejection = map.getInt() != 0;
+            if (bundle.numClusters < 1 || bundle.numDimensions < 1 || K < 1 || bundle.numClusters > numSymbols
+                    || numSymbols > numEmissionRows || totalNumStates < 1 || numTransitions < 1
+                    || getDataOffset(K) + 8L * (K + (long) bundle.numClusters * bundle.numDimensions + numTransitions
+                    + (long) numEmissionRows * totalNumStates + totalNumStates) != fileSize) {
+                System.err.println("open(String filename) - The header does not match the size of the file!");
+                return null;
+            }
+
+            int[] classLabels = new int[K];
+            int[] numStates = new int[K];
+            int[] lowerBand = new int[K];
+            int[] upperBand = new int[K];
+            map.asIntBuffer().get(classLabels).get(numStates).get(lowerBand).get(upperBand);
+
+            //Check the models match the sizes in the header before their offsets are rebuilt
+            long states = 0;
+            long transitions = 0;
+            for (int k = 0; k < K; k++) {
+                final int N = numStates[k];
+                if (N < 1 || lowerBand[k] < 0 || lowerBand[k] >= N || upperBand[k] < 0 || upperBand[k] >= N) {
+                    System.err.println("open(String filename) - The model of class " + classLabels[k] + " is not valid!");
+                    return null;
+                }
+                states += N;
+                transitions += (long) N * N;
+            }
+            if (states != totalNumStates || transitions != numTransitions) {
+                System.err.println("open(String filename) - The models do not match the number of states in the header!");
+                return null;
+            }
+
+            long offset = getDataOffset(K);
+            double[] nullRejectionThresholds = new double[K];
+            doubles(map, offset, K).get(nullRejectionThresholds);
+            offset += 8L * K;
+            bundle.centroids = doubles(map, offset, bundle.numClusters * bundle.numDimensions);
+            offset += 8L * bundle.numClusters * bundle.numDimensions;
+            double[] aT = new double[numTransitions];
+            doubles(map, offset, numTransitions).get(aT);
+            offset += 8L * numTransitions;
+            double[] bT = new double[numEmissionRows * totalNumStates];
+            doubles(map, offset, bT.length).get(bT);
+            offset += 8L * bT.length;
+            double[] pi = new double[totalNumStates];
+            doubles(map, offset, totalNumStates).get(pi);
+            bundle.models = new HMMPackedModels(numStates, lowerBand, upperBand, numEmissionRows, aT, bT, pi,
+                    numSymbols, classLabels, useNullRejection, nullRejectionThresholds);
+            return bundle;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns a view of count doubles of the map, starting at offset.
+     */
+    private static DoubleBuffer doubles(ByteBuffer map, long offset, int count) {
+        ByteBuffer view = map.duplicate();
+        view.position((int) offset);
+        view.limit((int) offset + 8 * count);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    /**
+     * Quantizes one frame with the bundled clusters, giving the same value as
+     * KMeansQuantizer.quantize.
+     *
+     * @param frames: the frame is frames[offset..offset+numDimensions)
+     * @return the index of the closest cluster
+     */
+    public int quantize(double[] frames, int offset) {
+        final DoubleBuffer centroids = this.centroids;
+        final int D = numDimensions;
+        double minDist = Double.MAX_VALUE;
+        int quantizedValue = 0;
+
+        for (int k = 0; k < numClusters; k++) {
+            //Compute the squared Euclidean distance
+            double d = 0.0;
+            final int base = k * D;
+            for (int i = 0; i < D; i++) {
+                double diff = frames[offset + i] - centroids.get(base + i);
+                d += diff * diff;
+            }
+
+            if (d < minDist) {
+                minDist = d;
+                quantizedValue = k;
+            }
+        }
+        return quantizedValue;
+    }
+
+    /**
+     * Classifies a quantized observation sequence, giving the same result as
+     * HMM.classify with the bundled HMM. This is thread safe.
+     *
+     * @return the prediction, or null if the sequence is not valid
+     */
+    public HMMPrediction classify(int[] observationSequence) {
+        if (observationSequence.length == 0) {
+            System.err.println("classify(int[] observationSequence) - The observation sequence is empty!");
+            return null;
+        }
+
+        for (int i = 0; i < observationSequence.length; i++) {
+            if (observationSequence[i] < 0 || observationSequence[i] >= models.numInputSymbols) {
+                System.err.println("classify(int[] observationSequence) - The new observation is not a valid symbol! It should be in the range [0 numSymbols-1]");
+                return null;
+            }
+        }
+
+        double[] distances = new double[models.numModels];
+        models.predict(observationSequence, distances);
+        return getPrediction(distances);
+    }
+
+    /**
+     * Classifies sample i of quantized data, reading its symbols straight from
+     * the compact dataset. This is thread safe.
+     *
+     * @return the prediction, or null if the sample is not valid
+     */
+    public HMMPrediction classify(QuantizedSequenceData data, int i) {
+        final int T = data.getLength(i);
+        if (T == 0) {
+            System.err.println("classify(QuantizedSequenceData data, int i) - The observation sequence is empty!");
+            return null;
+        }
+
+        //The symbols only need checking if the data has more symbols than the HMM
+        if (data.getNumSymbols() > models.numInputSymbols) {
+            for (int t = 0; t < T; t++) {
+                if (data.getSymbol(i, t) >= models.numInputSymbols) {
+                    System.err.println("classify(QuantizedSequenceData data, int i) - The new observation is not a valid symbol! It should be in the range [0 numSymbols-1]");
+                    return null;
+                }
+            }
+        }
+
+        double[] distances = new double[models.numModels];
+        models.predict(data, i, distances);
+        return getPrediction(distances);
+    }
+
+    /**
+     * Quantizes a time series of raw frames with the bundled clusters and
+     * classifies it. This is thread safe.
+     *
+     * @param frames: the time series, with numDimensions columns
+     * @return the prediction, or null if the time series is not valid
+     */
+    public HMMPrediction classifyFrames(MatrixDouble frames) {
+        final int T = frames.getNumRows();
+        if (T == 0 || frames.getNumCols() != numDimensions) {
+            System.err.println("classifyFrames(MatrixDouble frames) - The time series is empty or does not have " + numDimensions + " columns!");
+            return null;
+        }
+
+        //The clusters are never more than the symbols, so the sequence is always valid
+        final double[] frame = frameBuffer.get();
+        int[] observationSequence = new int[T];
+        for (int t = 0; t < T; t++) {
+            frames.getRow(t, frame, 0);
+            observationSequence[t] = quantize(frame, 0);
+        }
+
+        double[] distances = new double[models.numModels];
+        models.predict(observationSequence, distances);
+        return getPrediction(distances);
+    }
+
+    /**
+     * Turns the class distances into a prediction, applying null rejection in
+     * the same way as the HMM.
+     */
+    private HMMPrediction getPrediction(double[] distances) {
+        double[] likelihoods = new double[models.numModels];
+        int bestIndex = HMM.computeClassLikelihoods(distances, likelihoods);
+        int classLabel = models.classLabels[bestIndex];
+        if (HMM.isNullRejected(bestIndex, likelihoods[bestIndex], models.useNullRejection, models.nullRejectionThresholds)) {
+            classLabel = 0;
+        }
+        return new HMMPrediction(classLabel, likelihoods[bestIndex], likelihoods, distances);
+    }
+
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    public int getNumDimensions() {
+        return numDimensions;
+    }
+
+    public int getNumClasses() {
+        return models.numModels;
+    }
+
+    public int getNumSymbols() {
+        return models.numInputSymbols;
+    }
+
+    public boolean getUseNullRejection() {
+        return models.useNullRejection;
+    }
+
+    /**
+     * Gets a copy of the label of each class, in the order of the class
+     * likelihoods of a prediction.
+     */
+    public int[] getClassLabels() {
+        return models.classLabels.clone();
+    }
+
+    public double getNullRejectionThreshold(int k) {
+        return models.nullRejectionThresholds[k];
+    }
+}
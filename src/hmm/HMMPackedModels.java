@@ -0,0 +1,277 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hmm;
+
+import DataStructures.QuantizedSequenceData;
+import java.util.ArrayList;
+
+/**
+ * All the class models of an HMM packed into flat arrays, so a sequence can be
+ * scored against every class in a single pass. The transitions and priors are
+ * stacked per class, and the emissions are grouped by symbol so the emission
+ * columns of every class for the current symbol sit next to each other. At each
+ * time step the forward vectors of all the classes are advanced together.
+ *
+ * The packed models are never modified once built, so one instance can be
+ * used by any number of threads. The forward vectors live in buffers owned by
+ * the caller, or in per-thread scratch buffers for predict.
+ *
+ * @author Пользователь
+ */
+class HMMPackedModels {
+
+    final int numModels;
+    final int totalNumStates;   //The sum of the number of states of every model
+    final int numSymbols;       //The largest number of symbols of any model
+    final int[] numStates;      //The number of states of each model
+    final int[] stateOffset;    //The position of the states of each model in a forward vector
+    final int[] aOffset;        //The position of the transitions of each model in aT
+    final double[] aT;          //Transposed transitions, aT[aOffset[k]+j*N+i] = a_k(i,j)
+    final double[] bT;          //Emissions grouped by symbol, bT[o*totalNumStates+stateOffset[k]+i] = b_k(i,o)
+    final double[] pi;          //Priors, pi[stateOffset[k]+i] = pi_k(i)
+    final int[] lowerBand;      //a_k(i,j) is zero for i-j > lowerBand[k]
+    final int[] upperBand;      //a_k(i,j) is zero for j-i > upperBand[k]
+    final int numInputSymbols;  //The number of symbols of the HMM, the valid observations are [0 numInputSymbols-1]
+    final int[] classLabels;    //The class label of each model
+    final boolean useNullRejection;
+    final double[] nullRejectionThresholds; //The null rejection threshold of each model, null if there are none
+
+    private final ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+        @Override
+        protected double[][] initialValue() {
+            return new double[][]{new double[totalNumStates], new double[totalNumStates]};
+        }
+    };
+
+    /**
+     * Packs the class models together with the settings of the HMM they are
+     * scored with, so that retraining the HMM never mixes new settings with
+     * old models.
+     *
+     * @param models: the class models, must not be empty
+     * @param numInputSymbols: the number of symbols of the HMM
+     * @param classLabels: the class label of each model
+     * @param useNullRejection: true if the best class is null rejected when
+     * its likelihood is not above its threshold
+     * @param nullRejectionThresholds: the threshold of each model, may be
+     * null if useNullRejection is false
+     */
+    HMMPackedModels(ArrayList<HiddenMarkovModel> models, int numInputSymbols, int[] classLabels, boolean useNullRejection, double[] nullRejectionThresholds) {
+        final int K = models.size();
+        numModels = K;
+        this.numInputSymbols = numInputSymbols;
+        this.classLabels = classLabels.clone();
+        this.useNullRejection = useNullRejection;
+        this.nullRejectionThresholds = nullRejectionThresholds != null ? nullRejectionThresholds.clone() : null;
+        numStates = new int[K];
+        stateOffset = new int[K];
+        aOffset = new int[K];
+        lowerBand = new int[K];
+        upperBand = new int[K];
+
+        int states = 0;
+        int transitions = 0;
+        int symbols = 0;
+        for (int k = 0; k < K; k++) {
+            numStates[k] = models.get(k).numStates;
+            stateOffset[k] = states;
+            aOffset[k] = transitions;
+            states += numStates[k];
+            transitions += numStates[k] * numStates[k];
+            symbols = Math.max(symbols, models.get(k).numSymbols);
+        }
+        totalNumStates = states;
+        numSymbols = symbols;
+        aT = new double[transitions];
+        bT = new double[symbols * states];
+        pi = new double[states];
+
+        for (int k = 0; k < K; k++) {
+            HiddenMarkovModel model = models.get(k);
+            final int N = numStates[k];
+            for (int i = 0; i < N; i++) {
+                for (int j = 0; j < N; j++) {
+                    double val = model.a.get(i, j);
+                    aT[aOffset[k] + j * N + i] = val;
+                    if (val != 0) {
+                        lowerBand[k] = Math.max(lowerBand[k], i - j);
+                        upperBand[k] = Math.max(upperBand[k], j - i);
+                    }
+                }
+                for (int o = 0; o < model.numSymbols; o++) {
+                    bT[o * states + stateOffset[k] + i] = model.b.get(i, o);
+                }
+                pi[stateOffset[k] + i] = model.pi[i];
+            }
+        }
+    }
+
+    /**
+     * Wraps models that are already packed, such as the ones read from a
+     * bundle file. The arrays are kept, not copied. The HMM settings are the
+     * same as for the constructor above.
+     *
+     * @param numStates: the number of states of each model, must not be empty
+     * @param lowerBand: the lower band of the transitions of each model
+     * @param upperBand: the upper band of the transitions of each model
+     * @param numSymbols: the number of emission rows in bT
+     * @param aT: the transposed transitions of every model
+     * @param bT: the emissions of every model grouped by symbol
+     * @param pi: the priors of every model
+     */
+    HMMPackedModels(int[] numStates, int[] lowerBand, int[] upperBand, int numSymbols, double[] aT, double[] bT, double[] pi,
+            int numInputSymbols, int[] classLabels, boolean useNullRejection, double[] nullRejectionThresholds) {
+        final int K = numStates.length;
+        numModels = K;
+        this.numInputSymbols = numInputSymbols;
+        this.classLabels = classLabels;
+        this.useNullRejection = useNullRejection;
+        this.nullRejectionThresholds = nullRejectionThresholds;
+        this.numStates = numStates;
+        this.lowerBand = lowerBand;
+        this.upperBand = upperBand;
+        stateOffset = new int[K];
+        aOffset = new int[K];
+
+        int states = 0;
+        int transitions = 0;
+        for (int k = 0; k < K; k++) {
+            stateOffset[k] = states;
+            aOffset[k] = transitions;
+            states += numStates[k];
+            transitions += numStates[k] * numStates[k];
+        }
+        totalNumStates = states;
+        this.numSymbols = numSymbols;
+        this.aT = aT;
+        this.bT = bT;
+        this.pi = pi;
+    }
+
+    /**
+     * Runs the scaled forward algorithm of every class over obs in one pass.
+     * The result for each class is exactly what HiddenMarkovModel.predict
+     * returns for that class. This is thread safe.
+     *
+     * @param obs: the observation sequence
+     * @param classDistances: the buffer the log likelihood of each class is
+     * written to
+     */
+    void predict(int[] obs, double[] classDistances) {
+        final int T = obs.length;
+        final double[][] buffers = scratch.get();
+        double[] alpha = buffers[0];
+        double[] next = buffers[1];
+
+        forwardInit(obs[0], alpha, classDistances);
+        for (int t = 1; t < T; t++) {
+            forwardStep(obs[t], alpha, next, classDistances);
+            double[] temp = alpha;
+            alpha = next;
+            next = temp;
+        }
+
+        //Return the negative log likelihood
+        for (int k = 0; k < numModels; k++) {
+            classDistances[k] = -classDistances[k];
+        }
+    }
+
+    /**
+     * Same as predict(int[], double[]) for sample i of quantized data, reading
+     * the symbols from the compact dataset without converting the sequence.
+     */
+    void predict(QuantizedSequenceData data, int i, double[] classDistances) {
+        final int T = data.getLength(i);
+        final double[][] buffers = scratch.get();
+        double[] alpha = buffers[0];
+        double[] next = buffers[1];
+
+        forwardInit(data.getSymbol(i, 0), alpha, classDistances);
+        for (int t = 1; t < T; t++) {
+            forwardStep(data.getSymbol(i, t), alpha, next, classDistances);
+            double[] temp = alpha;
+            alpha = next;
+            next = temp;
+        }
+
+        //Return the negative log likelihood
+        for (int k = 0; k < numModels; k++) {
+            classDistances[k] = -classDistances[k];
+        }
+    }
+
+    /**
+     * Computes the scaled forward vectors of every class for the first
+     * observation of a sequence.
+     *
+     * @param symbol: the first observation
+     * @param alpha: the buffer the forward vectors are written to, of size
+     * totalNumStates
+     * @param logScales: set to the log of the scaling coefficient of each class
+     */
+    void forwardInit(int symbol, double[] alpha, double[] logScales) {
+        final int bRow = symbol * totalNumStates;
+        int k, i;
+
+        for (k = 0; k < numModels; k++) {
+            final int N = numStates[k];
+            final int row = stateOffset[k];
+            double sum = 0.0;
+            for (i = 0; i < N; i++) {
+                double val = pi[row + i] * bT[bRow + row + i];
+                alpha[row + i] = val;
+                sum += val;
+            }
+            final double scale = 1.0 / sum;
+            for (i = 0; i < N; i++) {
+                alpha[row + i] *= scale;
+            }
+            logScales[k] = Math.log(scale);
+        }
+    }
+
+    /**
+     * Advances the scaled forward vectors of every class by one observation.
+     *
+     * @param symbol: the new observation
+     * @param alpha: the forward vectors of the previous step
+     * @param next: the buffer the new forward vectors are written to
+     * @param logScales: the log of the scaling coefficient of each class is
+     * added to this
+     */
+    void forwardStep(int symbol, double[] alpha, double[] next, double[] logScales) {
+        final double[] aT = this.aT;
+        final double[] bT = this.bT;
+        final int bRow = symbol * totalNumStates;
+        int k, i, j;
+
+        for (k = 0; k < numModels; k++) {
+            final int N = numStates[k];
+            final int row = stateOffset[k];
+            final int aBase = aOffset[k];
+            final int lower = lowerBand[k];
+            final int upper = upperBand[k];
+            double sum = 0.0;
+            for (j = 0; j < N; j++) {
+                final int aRow = aBase + j * N;
+                final int iEnd = Math.min(N - 1, j + lower);
+                double val = 0.0;
+                for (i = j > upper ? j - upper : 0; i <= iEnd; i++) {
+                    val += alpha[row + i] * aT[aRow + i];
+                }
+                val *= bT[bRow + row + j];
+                next[row + j] = val;
+                sum += val;
+            }
+            final double scale = 1.0 / sum;
+            for (j = 0; j < N; j++) {
+                next[row + j] *= scale;
+            }
+            logScales[k] += Math.log(scale);
+        }
+    }
+}
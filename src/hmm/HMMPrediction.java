@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hmm;
+
+/**
+ * The immutable result of HMM.classify.
+ *
+ * @author Пользователь
+ */
+public final class HMMPrediction {
+
+    private final int predictedClassLabel;
+    private final double maxLikelihood;
+    private final double[] classLikelihoods;
+    private final double[] classDistances;
+
+    HMMPrediction(int predictedClassLabel, double maxLikelihood, double[] classLikelihoods, double[] classDistances) {
+        this.predictedClassLabel = predictedClassLabel;
+        this.maxLikelihood = maxLikelihood;
+        this.classLikelihoods = classLikelihoods;
+        this.classDistances = classDistances;
+    }
+
+    /**
+     * Gets the predicted class label, this is 0 if the sequence was null
+     * rejected.
+     *
+     * @return the predicted class label
+     */
+    public int getPredictedClassLabel() {
+        return predictedClassLabel;
+    }
+
+    public double getMaximumLikelihood() {
+        return maxLikelihood;
+    }
+
+    public int getNumClasses() {
+        return classLikelihoods.length;
+    }
+
+    public double getClassLikelihood(int k) {
+        return classLikelihoods[k];
+    }
+
+    public double getClassDistance(int k) {
+        return classDistances[k];
+    }
+
+    /**
+     * Gets a copy of the normalised likelihood of each class.
+     *
+     * @return the class likelihoods
+     */
+    public double[] getClassLikelihoods() {
+        return classLikelihoods.clone();
+    }
+
+    /**
+     * Gets a copy of the log likelihood of each class.
+     *
+     * @return the class distances
+     */
+    public double[] getClassDistances() {
+        return classDistances.clone();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hmm;
+
+/**
+ * Recognises a live stream of quantized symbols with every class model of a
+ * trained HMM. Each class keeps only its scaled forward vector and its running
+ * log likelihood, the models themselves are only read, so pushing a new symbol
+ * costs the same whatever the length of the stream and does not allocate.
+ * After pushing a whole sequence the class distances, likelihoods and
+ * predicted label are the same as HMM.predict returns for that sequence.
+ *
+ * A session is not thread safe, use one session per stream. Any number of
+ * sessions can share the same HMM.
+ *
+ * @author Пользователь
+ */
+public class HMMSession {
+
+    protected HMMPackedModels packedModels;  //The class models and settings of the HMM, shared read-only with other sessions
+    protected int numFrames = 0;            //The number of symbols pushed since the last reset
+    protected int predictedClassLabel = 0;
+    protected boolean nullRejected = false; //True if the stream so far was null rejected by the best class model
+    protected double maxLikelihood = 0;
+    protected double[] classLikelihoods;
+    protected double[] classDistances;      //The log likelihood of the stream for each class model
+    protected double[] logScaleSums;        //The sum of the log scaling coefficients of each class model
+    protected double[] alpha;               //The scaled forward vectors of every class model
+    protected double[] nextAlpha;           //The buffer the next forward vectors are written to
+
+    HMMSession(HMM hmm) {
+        packedModels = hmm.getPackedModels();
+        final int numClasses = packedModels.numModels;
+        classLikelihoods = new double[numClasses];
+        classDistances = new double[numClasses];
+        logScaleSums = new double[numClasses];
+        alpha = new double[packedModels.totalNumStates];
+        nextAlpha = new double[packedModels.totalNumStates];
+    }
+
+    /**
+     * Forgets every symbol pushed so far, so the session can start on a new
+     * stream.
+     */
+    public void reset() {
+        numFrames = 0;
+        predictedClassLabel = 0;
+        nullRejected = false;
+        maxLikelihood = 0;
+        for (int k = 0; k < classDistances.length; k++) {
+            classDistances[k] = 0;
+            classLikelihoods[k] = 0;
+        }
+    }
+
+    /**
+     * Pushes the next symbol of the stream and updates the class likelihoods
+     * and the predicted class label.
+     *
+     * @param symbol: the new quantized observation
+     * @return true if the symbol was added, false if it is not a valid symbol
+     */
+    public boolean update(int symbol) {
+        if (symbol < 0 || symbol >= packedModels.numInputSymbols) {
+            System.err.println("update(int symbol) - The new observation is not a valid symbol! It should be in the range [0 numSymbols-1]");
+            return false;
+        }
+
+        if (numFrames == 0) {
+            packedModels.forwardInit(symbol, alpha, logScaleSums);
+        } else {
+            packedModels.forwardStep(symbol, alpha, nextAlpha, logScaleSums);
+            double[] temp = alpha;
+            alpha = nextAlpha;
+            nextAlpha = temp;
+        }
+        numFrames++;
+
+        for (int k = 0; k < classDistances.length; k++) {
+            classDistances[k] = -logScaleSums[k];
+        }
+
+        int bestIndex = HMM.computeClassLikelihoods(classDistances, classLikelihoods);
+        maxLikelihood = classLikelihoods[bestIndex];
+        nullRejected = HMM.isNullRejected(bestIndex, maxLikelihood, packedModels.useNullRejection, packedModels.nullRejectionThresholds);
+        predictedClassLabel = nullRejected ? 0 : packedModels.classLabels[bestIndex];
+        return true;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Gets the predicted class label for the stream so far. This is 0 if no
+     * symbol has been pushed or if the stream was null rejected.
+     *
+     * @return the predicted class label
+     */
+    public int getPredictedClassLabel() {
+        return predictedClassLabel;
+    }
+
+    /**
+     * Returns true if null rejection is enabled and the stream so far was
+     * rejected by the best class model.
+     */
+    public boolean isNullRejected() {
+        return nullRejected;
+    }
+
+    public double getMaximumLikelihood() {
+        return maxLikelihood;
+    }
+
+    public double[] getClassLikelihoods() {
+        return classLikelihoods;
+    }
+
+    public double[] getClassDistances() {
+        return classDistances;
+    }
+}
@@ -5,16 +5,38 @@
  */
 package hmm;
 
-import Util.MatrixDouble;
-
 /**
  *
  * @author Пользователь
  */
 class HMMTrainingObject {
 
-    MatrixDouble alpha;     //The forward estimate matrix
-    MatrixDouble beta;      //The backward estimate matrix
-    double[] c;         //The scaling coefficient vector
+    int numStates = 0;      //The row stride of alpha and beta
+    double[] alpha = new double[0];     //The forward estimate matrix, stored row-major as alpha[t*numStates+i]
+    double[] beta = new double[0];      //The backward estimate matrix, stored row-major as beta[t*numStates+i]
+    double[] c = new double[0];         //The scaling coefficient vector
     double pk = 0.0;			//P( O | Model )    
+
+    /**
+     * Makes sure the workspace can hold a sequence of length T for a model
+     * with numStates states. The buffers only ever grow, so a workspace can be
+     * reused for sequences of different lengths without reallocating.
+     *
+     * @param T: the length of the observation sequence
+     * @param numStates: the number of states of the model
+     * @param useBeta: true if the backward matrix is needed as well
+     */
+    void resize(int T, int numStates, boolean useBeta) {
+        this.numStates = numStates;
+        final int size = T * numStates;
+        if (alpha.length < size) {
+            alpha = new double[size];
+        }
+        if (useBeta && beta.length < size) {
+            beta = new double[size];
+        }
+        if (c.length < T) {
+            c = new double[T];
+        }
+    }
 }
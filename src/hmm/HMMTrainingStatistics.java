@@ -0,0 +1,94 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hmm;
+
+import java.util.Arrays;
+
+/**
+ * The Baum-Welch sufficient statistics for one training iteration. The
+ * statistics are accumulated one sequence at a time, so the memory needed is
+ * O(N*N + N*M) plus two state vectors per sequence, whatever the length of the
+ * training sequences.
+ *
+ * @author Пользователь
+ */
+class HMMTrainingStatistics {
+
+    int numStates = 0;
+    int numSymbols = 0;
+    int numObs = 0;
+    double[] aNum = new double[0];      //Numerator of A, stored row-major as aNum[i*numStates+j]
+    double[] aDenom = new double[0];    //Denominator of A for each state i
+    double[] bNum = new double[0];      //Numerator of B, stored row-major as bNum[i*numSymbols+k]
+    double[] bDenom = new double[0];    //Denominator of B for each state i
+    double[] alpha0 = new double[0];    //alpha at t=0 for each sequence, used to re-estimate pi
+    double[] beta1 = new double[0];     //beta at t=1 for each sequence, used to re-estimate pi
+    double loglikelihood = 0.0;         //The sum of the log likelihoods of the sequences
+
+    void resize(int numStates, int numSymbols, int numObs) {
+        this.numStates = numStates;
+        this.numSymbols = numSymbols;
+        this.numObs = numObs;
+        if (aNum.length != numStates * numStates) {
+            aNum = new double[numStates * numStates];
+        }
+        if (aDenom.length != numStates) {
+            aDenom = new double[numStates];
+            bDenom = new double[numStates];
+        }
+        if (bNum.length != numStates * numSymbols) {
+            bNum = new double[numStates * numSymbols];
+        }
+        if (alpha0.length != numStates * numObs) {
+            alpha0 = new double[numStates * numObs];
+            beta1 = new double[numStates * numObs];
+        }
+    }
+
+    /**
+     * Creates an empty set of statistics of the same size that shares the pi
+     * buffers with this one. Each sequence only writes its own slice of those
+     * buffers, so several partials can be filled concurrently.
+     */
+    HMMTrainingStatistics newPartial() {
+        HMMTrainingStatistics partial = new HMMTrainingStatistics();
+        partial.numStates = numStates;
+        partial.numSymbols = numSymbols;
+        partial.numObs = numObs;
+        partial.aNum = new double[aNum.length];
+        partial.aDenom = new double[aDenom.length];
+        partial.bNum = new double[bNum.length];
+        partial.bDenom = new double[bDenom.length];
+        partial.alpha0 = alpha0;
+        partial.beta1 = beta1;
+        return partial;
+    }
+
+    /**
+     * Adds the accumulators of other to this one.
+     */
+    void add(HMMTrainingStatistics other) {
+        for (int i = 0; i < aNum.length; i++) {
+            aNum[i] += other.aNum[i];
+        }
+        for (int i = 0; i < bNum.length; i++) {
+            bNum[i] += other.bNum[i];
+        }
+        for (int i = 0; i < aDenom.length; i++) {
+            aDenom[i] += other.aDenom[i];
+            bDenom[i] += other.bDenom[i];
+        }
+        loglikelihood += other.loglikelihood;
+    }
+
+    void clear() {
+        Arrays.fill(aNum, 0.0);
+        Arrays.fill(aDenom, 0.0);
+        Arrays.fill(bNum, 0.0);
+        Arrays.fill(bDenom, 0.0);
+        loglikelihood = 0.0;
+    }
+}
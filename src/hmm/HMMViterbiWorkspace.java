@@ -0,0 +1,99 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package hmm;
+
+/**
+ * Holds the buffers and the result of a Viterbi decode. A workspace can be
+ * reused for any number of sequences and only grows when a longer sequence
+ * or a larger model is decoded, so decoding does not allocate once it has
+ * warmed up.
+ *
+ * By default the backpointers of the whole sequence are kept, which needs
+ * T*N ints. With a segment length the decoder only keeps the backpointers of
+ * one segment plus a checkpoint of the Viterbi scores at the start of each
+ * segment, and recomputes each segment during the traceback. This bounds the
+ * memory to about (T/segmentLength + segmentLength)*N values for roughly twice
+ * the work, and gives exactly the same path.
+ *
+ * @author Пользователь
+ */
+public class HMMViterbiWorkspace {
+
+    int segmentLength = 0;              //The number of time steps per segment, 0 to keep the whole sequence
+    int[] path = new int[0];            //The most likely state path
+    int pathLength = 0;                 //The length of the last decoded path
+    double logScore = Double.NEGATIVE_INFINITY;  //The log probability of the most likely path
+    int[] psi = new int[0];             //The backpointers of the current segment, stored row-major as psi[t*N+j]
+    double[] checkpoints = new double[0];   //The Viterbi scores at the start of each segment
+    double[] delta = new double[0];     //The Viterbi scores at the current time step
+    double[] nextDelta = new double[0]; //The Viterbi scores at the next time step
+
+    public HMMViterbiWorkspace() {
+    }
+
+    /**
+     * Creates a workspace for the bounded memory mode.
+     *
+     * @param segmentLength: the number of time steps per segment, whose
+     * backpointers are kept at once, or 0 to disable the bounded memory mode
+     * and keep the whole sequence
+     */
+    public HMMViterbiWorkspace(int segmentLength) {
+        setSegmentLength(segmentLength);
+    }
+
+    public boolean setSegmentLength(int segmentLength) {
+        if (segmentLength >= 0) {
+            this.segmentLength = segmentLength;
+            return true;
+        }
+
+        System.err.println("setSegmentLength( int segmentLength) - The segment length must not be negative!");
+        return false;
+    }
+
+    void resize(int T, int numStates, int segmentLength, int numSegments) {
+        if (path.length < T) {
+            path = new int[T];
+        }
+        if (psi.length < segmentLength * numStates) {
+            psi = new int[segmentLength * numStates];
+        }
+        if (checkpoints.length < numSegments * numStates) {
+            checkpoints = new double[numSegments * numStates];
+        }
+        if (delta.length < numStates) {
+            delta = new double[numStates];
+            nextDelta = new double[numStates];
+        }
+    }
+
+    /**
+     * Gets the most likely state path of the last decoded sequence. Only the
+     * first getPathLength() values are valid, the array is reused by the next
+     * decode.
+     *
+     * @return the state path buffer
+     */
+    public int[] getPath() {
+        return path;
+    }
+
+    public int getPathLength() {
+        return pathLength;
+    }
+
+    /**
+     * Gets the log probability of the most likely path of the last decoded
+     * sequence, or NEGATIVE_INFINITY if the sequence is impossible under the
+     * model.
+     *
+     * @return the log score of the path
+     */
+    public double getLogScore() {
+        return logScore;
+    }
+}
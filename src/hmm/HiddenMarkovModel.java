@@ -8,7 +8,16 @@ package hmm;
 import Util.MatrixDouble;
 import java.util.ArrayList;
 import static hmm.HMMModelTipes.*;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -16,6 +25,8 @@ import java.io.Serializable;
  */
 public class HiddenMarkovModel implements Serializable{
 
+    private static final long serialVersionUID = -1448399861821525886L;
+
     int numStates = 0;             //The number of states for this model
     int numSymbols = 0;            //The number of symbols for this model
     MatrixDouble a = new MatrixDouble();             //The transitions probability matrix
@@ -31,12 +42,22 @@ public class HiddenMarkovModel implements Serializable{
     double logLikelihood = 0.0;	//The log likelihood of an observation sequence given the modal, calculated by the forward method
     double cThreshold = -1000;		//The classification threshold for this model
     double minImprovement = 1.0e-5;	//The minimum improvement value for the training loop
+    int numThreads = 1;			//The number of threads used to run the E-step and the random restarts during training
+    transient Random random;		//The random generator used to initialise the model, see getRandom
     int[] observationSequence = new int[0];
     int[] estimatedStates = new int [0];
 
     private int currentIter;
     private double newLoglikelihood;
 
+    private transient double[] flatA;   //Row-major copy of a, flatA[i*numStates+j] = a(i,j)
+    private transient double[] flatAT;  //Transposed copy of a, flatAT[j*numStates+i] = a(i,j)
+    private transient double[] flatBT;  //Transposed copy of b, flatBT[k*numStates+i] = b(i,k)
+    private transient int lowerBand;    //a(i,j) is zero for i-j > lowerBand
+    private transient int upperBand;    //a(i,j) is zero for j-i > upperBand, for a LEFTRIGHT model this is delta
+    private transient volatile LogModel logModel;  //The log of the model used by viterbi, built on the first decode
+    private transient HMMTrainingObject predictWorkspace;  //Reused by predict so scoring does not allocate per call
+
     public HiddenMarkovModel() {
     }
 
@@ -52,6 +73,7 @@ public class HiddenMarkovModel implements Serializable{
         //Set the model as untrained as everything will now be reset
         modelTrained = false;
         logLikelihood = 0.0;
+        logModel = null;
 
         //Set the new state and symbol size
         this.numStates = numStates;
@@ -142,13 +164,36 @@ public class HiddenMarkovModel implements Serializable{
         return true;
     }
 
+    /**
+     * Gets the random generator, creating an unseeded one if none was set. The
+     * generator is not serialized, so a loaded model gets a new one.
+     */
+    private Random getRandom() {
+        if (random == null) {
+            random = new Random();
+        }
+        return random;
+    }
+
+    /**
+     * Reads the model, setting the number of threads to its default for
+     * streams written before it was serialized.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (numThreads < 1) {
+            numThreads = 1;
+        }
+    }
+
     private double getRandomNumberUniform(double minRange, double maxRange) {
-        return (Math.random() * (maxRange - minRange)) + minRange;
+        return (getRandom().nextDouble() * (maxRange - minRange)) + minRange;
     }
 
     boolean train(int[][] trainingData) {
         //Clear any previous models
         modelTrained = false;
+        logModel = null;
         observationSequence = null;
         estimatedStates = null;
         trainingIterationLog = null;
@@ -160,40 +205,33 @@ public class HiddenMarkovModel implements Serializable{
 //        newLoglikelihood = 0;
         if (numRandomTrainingIterations > 1) {
 
-            //A buffer to keep track each AB matrix
-            ArrayList< MatrixDouble> aTracker = new ArrayList<MatrixDouble>(numRandomTrainingIterations);
-            ArrayList< MatrixDouble> bTracker = new ArrayList<MatrixDouble>(numRandomTrainingIterations);
-            double[] loglikelihoodTracker = new double[numRandomTrainingIterations];
+            //Each restart is an independent candidate model with its own matrices and random seed
+            HiddenMarkovModel[] candidates = new HiddenMarkovModel[numRandomTrainingIterations];
+            for (n = 0; n < numRandomTrainingIterations; n++) {
+                candidates[n] = newCandidate(getRandom().nextLong());
+            }
 
             int maxNumTestIter = maxNumIter > 10 ? 10 : maxNumIter;
 
             //Try and find the best starting point
-            for (n = 0; n < numRandomTrainingIterations; n++) {
-                //Reset the model to a new random starting values
-                randomizeMatrices(numStates, numSymbols);
-
-                if (!train_(trainingData, maxNumTestIter)) {
-                    return false;
-                }
-
-                aTracker.add(n, a);
-                bTracker.add(n, b);
-                loglikelihoodTracker[n] = newLoglikelihood;
+            if (!trainCandidates(candidates, trainingData, maxNumTestIter)) {
+                return false;
             }
 
-            //Get the best result and set it as the a and b starting values
+            //Get the best result and set it as the a, b and pi starting values
             bestIndex = 0;
-            bestLogValue = loglikelihoodTracker[0];
+            bestLogValue = candidates[0].newLoglikelihood;
             for (n = 1; n < numRandomTrainingIterations; n++) {
-                if (bestLogValue < loglikelihoodTracker[n]) {
-                    bestLogValue = loglikelihoodTracker[n];
+                if (bestLogValue < candidates[n].newLoglikelihood) {
+                    bestLogValue = candidates[n].newLoglikelihood;
                     bestIndex = n;
                 }
             }
 
-            //Set a and b
-            a = aTracker.get(bestIndex);
-            b = bTracker.get(bestIndex);
+            //Set a, b and pi
+            a = candidates[bestIndex].a;
+            b = candidates[bestIndex].b;
+            pi = candidates[bestIndex].pi;
 
         } else {
             randomizeMatrices(numStates, numSymbols);
@@ -222,7 +260,70 @@ public class HiddenMarkovModel implements Serializable{
         return true;
     }
 
-    private boolean train_(int[][] obs, int maxIter) {
+    /**
+     * Creates an untrained copy of this model's settings with its own random
+     * starting matrices, used as one of the random training restarts.
+     */
+    private HiddenMarkovModel newCandidate(long seed) {
+        HiddenMarkovModel candidate = new HiddenMarkovModel();
+        candidate.modelType = modelType;
+        candidate.delta = delta;
+        candidate.maxNumIter = maxNumIter;
+        candidate.minImprovement = minImprovement;
+        candidate.random = new Random(seed);
+        candidate.randomizeMatrices(numStates, numSymbols);
+        return candidate;
+    }
+
+    /**
+     * Runs a short Baum-Welch training on each candidate. The candidates do not
+     * share any state, so they are trained concurrently when numThreads > 1.
+     */
+    private boolean trainCandidates(final HiddenMarkovModel[] candidates, final int[][] trainingData, final int maxIter) {
+        final int numWorkers = Math.min(numThreads, candidates.length);
+
+        if (numWorkers <= 1) {
+            for (int n = 0; n < candidates.length; n++) {
+                if (!candidates[n].train_(trainingData, maxIter)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(candidates.length);
+        for (int n = 0; n < candidates.length; n++) {
+            final HiddenMarkovModel candidate = candidates[n];
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return candidate.train_(trainingData, maxIter);
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        try {
+            List<Future<Boolean>> results = executor.invokeAll(tasks);
+            for (int n = 0; n < candidates.length; n++) {
+                if (!results.get(n).get()) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.err.println("trainCandidates(int[][] trainingData) - Interrupted while training the random restarts!");
+            return false;
+        } catch (ExecutionException ex) {
+            System.err.println("trainCandidates(int[][] trainingData) - Failed to train a random restart! " + ex.getCause());
+            return false;
+        } finally {
+            executor.shutdown();
+        }
+        return true;
+    }
+
+    boolean train_(int[][] obs, int maxIter) {
 
         int numObs = obs.length;
         int i, j, k, t = 0;
@@ -230,270 +331,330 @@ public class HiddenMarkovModel implements Serializable{
         boolean keepTraining = true;
         trainingIterationLog = new ArrayList<Double>();
 
-        //Create the array to hold the data for each training instance
-        HMMTrainingObject[] hmms = new HMMTrainingObject[numObs];
-
-        //Create epislon and gamma to hold the re-estimation variables
-        MatrixDouble[][] epsilon = new MatrixDouble[numObs][];
-        MatrixDouble[] gamma = new MatrixDouble[numObs];
+        final int N = numStates;
+        final int M = numSymbols;
 
-        //Resize the hmms, epsilon and gamma matrices so they are ready to be filled
+        //The sequences are processed one at a time, so a single forward/backward
+        //workspace sized for the longest sequence is shared by all of them
+        int maxT = 0;
         for (k = 0; k < numObs; k++) {
-            final int T = obs[k].length;
-            gamma[k] = new MatrixDouble(T, numStates);
-            epsilon[k] = new MatrixDouble[T];
-            for (t = 0; t < T; t++) {
-                epsilon[k][t] = new MatrixDouble(numStates, numStates);
-            }
+            maxT = Math.max(maxT, obs[k].length);
+        }
 
-            //Resize alpha, beta and phi
-            hmms[k] = new HMMTrainingObject();
-            hmms[k].alpha = new MatrixDouble(T, numStates);
-            hmms[k].beta = new MatrixDouble(T, numStates);
-            hmms[k].c = new double[T];
+        //The re-estimation statistics are accumulated as each sequence is processed
+        HMMTrainingStatistics stats = new HMMTrainingStatistics();
+        stats.resize(N, M, numObs);
+
+        //When running in parallel each worker gets a fixed, contiguous block of sequences
+        //with its own workspace and statistics, so the reduction order never changes
+        final int numWorkers = Math.max(1, Math.min(numThreads, numObs));
+        HMMTrainingObject[] workspaces = new HMMTrainingObject[numWorkers];
+        HMMTrainingStatistics[] partials = new HMMTrainingStatistics[numWorkers];
+        for (int w = 0; w < numWorkers; w++) {
+            workspaces[w] = new HMMTrainingObject();
+            workspaces[w].resize(maxT, N, true);
+            partials[w] = numWorkers > 1 ? stats.newPartial() : stats;
         }
+        ExecutorService executor = numWorkers > 1 ? Executors.newFixedThreadPool(numWorkers) : null;
 
         //For each training seq, run one pass of the forward backward
         //algorithm then reestimate a and b using the Baum-Welch
         oldLoglikelihood = 0;
         newLoglikelihood = 0;
         currentIter = 0;
+        updateFlatModel();
 
-        do {
-            newLoglikelihood = 0.0;
-
-            //Run the forwardbackward algorithm for each training example
-            for (k = 0; k < numObs; k++) {
-                if (!forwardBackward(hmms[k], obs[k])) {
+        try {
+            do {
+                //Run the forwardbackward algorithm for each training example and accumulate its statistics
+                if (!estep(obs, workspaces, partials, stats, executor)) {
                     return false;
                 }
-                newLoglikelihood += hmms[k].pk;
-            }
 
-            //Set the new log likelihood as the average of the observations
-            newLoglikelihood /= numObs;
+                //Set the new log likelihood as the average of the observations
+                newLoglikelihood = stats.loglikelihood / numObs;
 
-            trainingIterationLog.add(newLoglikelihood);
+                trainingIterationLog.add(newLoglikelihood);
 
-            if (++currentIter >= maxIter) {
-                keepTraining = false;
-                System.out.println("Max Iter Reached! Stopping Training");
-            }
-            if (Math.abs(newLoglikelihood - oldLoglikelihood) < minImprovement && currentIter > 1) {
-                keepTraining = false;
-                System.out.println("Min Improvement Reached! Stopping Training");
-            }
+                if (++currentIter >= maxIter) {
+                    keepTraining = false;
+                    System.out.println("Max Iter Reached! Stopping Training");
+                }
+                if (Math.abs(newLoglikelihood - oldLoglikelihood) < minImprovement && currentIter > 1) {
+                    keepTraining = false;
+                    System.out.println("Min Improvement Reached! Stopping Training");
+                }
 
-            System.out.println("Iter: " + currentIter + " logLikelihood: " + newLoglikelihood + " change: " + (oldLoglikelihood - newLoglikelihood));
+                System.out.println("Iter: " + currentIter + " logLikelihood: " + newLoglikelihood + " change: " + (oldLoglikelihood - newLoglikelihood));
 
-            printMatrices();
+                printMatrices();
 
-            oldLoglikelihood = newLoglikelihood;
+                oldLoglikelihood = newLoglikelihood;
 
-            //Only update A, B, and Pi if needed
-            if (keepTraining) {
+                //Only update A, B, and Pi if needed
+                if (keepTraining) {
 
-                //Re-estimate A
-                for (i = 0; i < numStates; i++) {
+                    //Re-estimate A
+                    for (i = 0; i < N; i++) {
+                        denom = stats.aDenom[i];
+                        if (denom > 0) {
+                            for (j = 0; j < N; j++) {
+                                num = stats.aNum[i * N + j];
 
-                    //Compute the denominator of A (which is independent of j)
-                    denom = 0;
-                    for (k = 0; k < numObs; k++) {
-                        for (t = 0; t < obs[k].length - 1; t++) {
-                            denom += hmms[k].alpha.get(t, i) * hmms[k].beta.get(t, i) / hmms[k].c[t];
+                                //Update a[i][j]
+                                a.set(num / denom, i, j);
+                            }
+                        } else {
+                            System.err.println("Denom is zero for A!");
+                            return false;
                         }
                     }
 
-                    //Compute the numerator and also update a[i][j]
-                    if (denom > 0) {
-                        for (j = 0; j < numStates; j++) {
-                            num = 0;
-                            for (k = 0; k < numObs; k++) {
-                                for (t = 0; t < obs[k].length - 1; t++) {
-                                    num += hmms[k].alpha.get(t, i) * a.get(i, j) * b.get(j, obs[k][t + 1]) * hmms[k].beta.get(t + 1, j);
-                                }
-                            }
+                    //Re-estimate B
+                    boolean renormB = false;
+                    for (i = 0; i < N; i++) {
+                        denom = stats.bDenom[i];
+                        for (j = 0; j < M; j++) {
+                            num = stats.bNum[i * M + j];
 
-                            //Update a[i][j]
-                            a.set(num / denom, i, j);
+                            if (denom == 0) {
+                                System.err.println("Denominator is zero for B!");
+                                return false;
+                            }
+                            //Update b[i][j]
+                            //If there are no observations at all for a state then the probabilities will be zero which is bad
+                            //So instead we flag that B needs to be renormalized later
+                            if (num > 0) {
+                                double val = denom > 0 ? num / denom : 1.0e-5;
+                                b.set(val, i, j);
+                            } else {
+                                b.set(0.0, i, j);
+                                renormB = true;
+                            }
                         }
-                    } else {
-                        System.err.println("Denom is zero for A!");
-                        return false;
                     }
-                }
 
-                //Re-estimate B
-                boolean renormB = false;
-                for (i = 0; i < numStates; i++) {
-                    for (j = 0; j < numSymbols; j++) {
-                        num = 0.0;
-                        denom = 0.0;
-                        for (k = 0; k < numObs; k++) {
-                            final int T = obs[k].length;
-                            for (t = 0; t < T; t++) {
-                                if (obs[k][t] == j) {
-                                    num += hmms[k].alpha.get(t, i) * hmms[k].beta.get(t, i) / hmms[k].c[t];
-                                }
-                                denom += hmms[k].alpha.get(t, i) * hmms[k].beta.get(t, i) / hmms[k].c[t];
+                    if (renormB) {
+                        double sum;
+                        for (i = 0; i < N; i++) {
+                            sum = 0.0;
+                            for (k = 0; k < M; k++) {
+                                double val = b.get(i, k);
+                                val += 1.0 / M; //Add a small value to B to make sure the value will not be zero
+                                b.set(val, i, k);
+                                sum += val;
+                            }
+                            for (k = 0; k < M; k++) {
+                                double val = b.get(i, k);
+                                val /= sum;
+                                b.set(val, i, k);
                             }
-                        }
-
-                        if (denom == 0) {
-                            System.err.println("Denominator is zero for B!");
-                            return false;
-                        }
-                        //Update b[i][j]
-                        //If there are no observations at all for a state then the probabilities will be zero which is bad
-                        //So instead we flag that B needs to be renormalized later
-                        if (num > 0) {
-                            double val = denom > 0 ? num / denom : 1.0e-5;
-                            b.set(val, i, j);
-                        } else {
-                            b.set(0.0, i, j);
-                            renormB = true;
                         }
                     }
-                }
 
-                if (renormB) {
-                    double sum;
-                    for (i = 0; i < numStates; i++) {
-                        sum = 0.0;
-                        for (k = 0; k < numSymbols; k++) {
-                            double val = b.get(i, k);
-                            val += 1.0 / numSymbols; //Add a small value to B to make sure the value will not be zero
-                            b.set(val, i, k);
-                            sum += val;
-                        }
-                        for (k = 0; k < numSymbols; k++) {
-                            double val = b.get(i, k);
-                            val /= sum;
-                            b.set(val, i, k);
-                        }
+                    //Pi and the next forward/backward pass both use the new A and B
+                    updateFlatModel();
+
+                    //Re-estimate Pi - only if the model type is ERGODIC, otherwise Pi[0] == 1 and everything else is 0
+                    if (modelType == ERGODIC) {
+                        reestimatePi(obs, stats);
                     }
                 }
 
-                //Re-estimate Pi - only if the model type is ERGODIC, otherwise Pi[0] == 1 and everything else is 0
-                if (modelType == ERGODIC) {
-                    for (k = 0; k < numObs; k++) {
-                        final int T = obs[k].length;
-                        //Compute epsilon
-                        for (t = 0; t < T - 1; t++) {
-                            denom = 0.0;
-                            for (i = 0; i < numStates; i++) {
-                                for (j = 0; j < numStates; j++) {
-                                    double val = hmms[k].alpha.get(t, i) * a.get(i, j) * b.get(j, obs[k][t + 1]) * hmms[k].beta.get(t + 1, j);
-                                    epsilon[k][t].set(val, i, j);
-                                    denom += val;
-                                }
-                            }
-                            //Normalize Epsilon
-                            for (i = 0; i < numStates; i++) {
-                                for (j = 0; j < numStates; j++) {
-                                    if (denom != 0) {
-                                        double val = epsilon[k][t].get(i, j);
-                                        val /= denom;
-                                        epsilon[k][t].set(val, i, j);
-                                    } else {
-                                        epsilon[k][t].set(0, i, j);
-                                    }
-                                }
-                            }
-                        }
+            } while (keepTraining);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
 
-                        //Compute gamma
-                        for (t = 0; t < T - 1; t++) {
-                            for (i = 0; i < numStates; i++) {
-                                gamma[k].set(0.0, t, i);
-                                for (j = 0; j < numStates; j++) {
-                                    double val = gamma[k].get(t, i);
-                                    val += epsilon[k][t].get(i, j);
-                                    gamma[k].set(val, t, i);
-                                }
-                            }
-                        }
-                    }
+        return true;
+    }
 
-                    double sum = 0;
-                    for (i = 0; i < numStates; i++) {
-                        sum = 0.0;
-                        for (k = 0; k < numObs; k++) {
-                            sum += gamma[k].get(0, i);
-                        }
-                        pi[i] = sum / numObs;
-                    }
+    /**
+     * Runs forward/backward over every training sequence and fills stats. With
+     * an executor the sequences are split into one contiguous block per worker
+     * and the partial statistics are summed in block order, so the result does
+     * not depend on thread scheduling.
+     */
+    private boolean estep(final int[][] obs, final HMMTrainingObject[] workspaces, final HMMTrainingStatistics[] partials, HMMTrainingStatistics stats, ExecutorService executor) {
+        final int numObs = obs.length;
+        final int numWorkers = partials.length;
+
+        if (executor == null) {
+            stats.clear();
+            for (int k = 0; k < numObs; k++) {
+                if (!forwardBackward(workspaces[0], obs[k])) {
+                    return false;
                 }
+                accumulateStatistics(workspaces[0], obs[k], k, stats);
             }
+            return true;
+        }
 
-        } while (keepTraining);
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(numWorkers);
+        for (int w = 0; w < numWorkers; w++) {
+            final int worker = w;
+            final int start = (int) ((long) numObs * w / numWorkers);
+            final int end = (int) ((long) numObs * (w + 1) / numWorkers);
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    partials[worker].clear();
+                    for (int k = start; k < end; k++) {
+                        if (!forwardBackward(workspaces[worker], obs[k])) {
+                            return false;
+                        }
+                        accumulateStatistics(workspaces[worker], obs[k], k, partials[worker]);
+                    }
+                    return true;
+                }
+            });
+        }
 
+        try {
+            List<Future<Boolean>> results = executor.invokeAll(tasks);
+            stats.clear();
+            for (int w = 0; w < numWorkers; w++) {
+                if (!results.get(w).get()) {
+                    return false;
+                }
+                stats.add(partials[w]);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.err.println("estep(int[][] obs) - Interrupted while running the forward backward algorithm!");
+            return false;
+        } catch (ExecutionException ex) {
+            System.err.println("estep(int[][] obs) - Failed to run the forward backward algorithm! " + ex.getCause());
+            return false;
+        }
         return true;
     }
 
-    double predict(int[] obs) {
+    /**
+     * Adds the Baum-Welch statistics of one sequence to stats. hmm must hold the
+     * forward/backward result for obs. This is a single pass over the sequence,
+     * the epsilon and gamma terms are never stored.
+     */
+    private void accumulateStatistics(HMMTrainingObject hmm, int[] obs, int obsIndex, HMMTrainingStatistics stats) {
         final int N = numStates;
+        final int M = numSymbols;
         final int T = obs.length;
-        int t, i, j = 0;
-        MatrixDouble alpha = new MatrixDouble(T, numStates);
-        double[] c = new double[T];
+        final double[] alpha = hmm.alpha;
+        final double[] beta = hmm.beta;
+        final double[] c = hmm.c;
+        final double[] aFlat = flatA;
+        final double[] bT = flatBT;
+        final double[] aNum = stats.aNum;
+        final double[] aDenom = stats.aDenom;
+        final double[] bNum = stats.bNum;
+        final double[] bDenom = stats.bDenom;
+        int t, i, j;
+
+        stats.loglikelihood += hmm.pk;
 
-        ////////////////// Run the forward algorithm ////////////////////////
-        //Step 1: Init at t=0
-        t = 0;
-        c[t] = 0.0;
-        for (i = 0; i < N; i++) {
-            double val = pi[i] * b.get(i, obs[t]);
-            alpha.set(val, t, i);
-            c[t] += val;
+        for (t = 0; t < T; t++) {
+            final int row = t * N;
+            final int next = row + N;
+            final boolean hasNext = t < T - 1;
+            final int bRow = hasNext ? obs[t + 1] * N : 0;
+            final int symbol = obs[t];
+            for (i = 0; i < N; i++) {
+                final double alphaTI = alpha[row + i];
+                final double gamma = alphaTI * beta[row + i] / c[t];
+                bNum[i * M + symbol] += gamma;
+                bDenom[i] += gamma;
+                if (hasNext) {
+                    aDenom[i] += gamma;
+                    final int aRow = i * N;
+                    final int jEnd = Math.min(N - 1, i + upperBand);
+                    for (j = i > lowerBand ? i - lowerBand : 0; j <= jEnd; j++) {
+                        aNum[aRow + j] += alphaTI * aFlat[aRow + j] * bT[bRow + j] * beta[next + j];
+                    }
+                }
+            }
         }
 
-        //Set the inital scaling coeff
-        c[t] = 1.0 / c[t];
-
-        //Scale alpha
-        for (i = 0; i < N; i++) {
-            double val = alpha.get(t, i);
-            val *= c[t];
-            alpha.set(val, t, i);
+        //Keep what is needed to re-estimate pi once A and B have been updated
+        final int offset = obsIndex * N;
+        System.arraycopy(alpha, 0, stats.alpha0, offset, N);
+        if (T > 1) {
+            System.arraycopy(beta, N, stats.beta1, offset, N);
         }
+    }
 
-        //Step 2: Induction
-        for (t = 1; t < T; t++) {
-            c[t] = 0.0;
-            for (j = 0; j < N; j++) {
-                alpha.set(0.0, t, j);
-                for (i = 0; i < N; i++) {
-                    double val = alpha.get(t, j);
-                    val += alpha.get(t - 1, i) * a.get(i, j);
-                    alpha.set(val, t, j);
+    /**
+     * Re-estimates pi from the expected state occupancy at t=0 of each sequence,
+     * using the updated A and B.
+     */
+    private void reestimatePi(int[][] obs, HMMTrainingStatistics stats) {
+        final int N = numStates;
+        final int numObs = obs.length;
+        final double[] aFlat = flatA;
+        final double[] bT = flatBT;
+        final double[] epsilon = new double[N * N];
+        final double[] gammaSum = new double[N];
+        int i, j, k;
 
-                }
-                double val = alpha.get(t, j);
-                val *= b.get(j, obs[t]);
-                alpha.set(val, t, j);
-                c[t] += alpha.get(t, j);
+        for (k = 0; k < numObs; k++) {
+            //Sequences of length one have no transitions and add nothing to pi
+            if (obs[k].length < 2) {
+                continue;
             }
+            final int offset = k * N;
+            final int bRow = obs[k][1] * N;
 
-            //Set the scaling coeff
-            c[t] = 1.0 / c[t];
+            //Compute epsilon at t=0
+            double denom = 0.0;
+            for (i = 0; i < N; i++) {
+                for (j = 0; j < N; j++) {
+                    double val = stats.alpha0[offset + i] * aFlat[i * N + j] * bT[bRow + j] * stats.beta1[offset + j];
+                    epsilon[i * N + j] = val;
+                    denom += val;
+                }
+            }
 
-            //Scale Alpha
-            for (j = 0; j < N; j++) {
-                double val = alpha.get(t, j);
-                val *= c[t];
-                alpha.set(val, t, j);
+            //Normalize epsilon and sum it into gamma at t=0
+            for (i = 0; i < N; i++) {
+                double gamma = 0.0;
+                for (j = 0; j < N; j++) {
+                    gamma += denom != 0 ? epsilon[i * N + j] / denom : 0;
+                }
+                gammaSum[i] += gamma;
             }
         }
 
+        for (i = 0; i < N; i++) {
+            pi[i] = gammaSum[i] / numObs;
+        }
+    }
+
+    double predict(int[] obs) {
+        final int N = numStates;
+        final int T = obs.length;
+        int t, i;
+
+        updateFlatModel();
+        if (predictWorkspace == null) {
+            predictWorkspace = new HMMTrainingObject();
+        }
+        predictWorkspace.resize(T, N, false);
+        final double[] alpha = predictWorkspace.alpha;
+        final double[] c = predictWorkspace.c;
+
+        ////////////////// Run the forward algorithm ////////////////////////
+        forward(predictWorkspace, obs);
+
         if (estimatedStates.length != T) {
             estimatedStates = new int[T];
         }
         for (t = 0; t < T; t++) {
+            final int row = t * N;
             double maxValue = 0;
             for (i = 0; i < N; i++) {
-                if (alpha.get(t, i) > maxValue) {
-                    maxValue = alpha.get(t, i);
+                if (alpha[row + i] > maxValue) {
+                    maxValue = alpha[row + i];
                     estimatedStates[t] = i;
                 }
             }
@@ -507,75 +668,131 @@ public class HiddenMarkovModel implements Serializable{
         return -loglikelihood; //Return the negative log likelihood
     }
 
-    private boolean forwardBackward(HMMTrainingObject hmm, int[] obs) {
-//        /* DEBUG! */
-//        System.out.print("====== FORWARDBACKWARD=====\n");
-//        System.out.print("Start state: \n");
-//        System.out.print("alpha: \n");
-//        hmm.alpha.print();
-//        System.out.print("beta: \n");
-//        hmm.beta.print();
-//        System.out.print("c: \n");
-//        for (int z = 0; z < hmm.c.length; z++) {
-//            System.out.print(hmm.c[z] + "\t");
-//        }
-//        System.out.print("\npk: " + hmm.pk);
-//        System.out.print("obs: \n");
-//        for (int z = 0; z < obs.length; z++) {
-//            System.out.print(obs[z] + "\t");
-//        }
-//
+    /**
+     * Finds the most likely state path for obs using the Viterbi algorithm in
+     * log space. The path and its log score are stored in the workspace, which
+     * also holds all the buffers needed, so repeated calls do not allocate.
+     *
+     * @param obs: the observation sequence, every value must be a valid symbol
+     * @param workspace: the buffers used for the decode and the result
+     * @return true if the sequence was decoded, false otherwise
+     */
+    boolean viterbi(int[] obs, HMMViterbiWorkspace workspace) {
         final int N = numStates;
         final int T = obs.length;
-        int t, i, j = 0;
+        int t, i, seg;
 
-        ////////////////// Run the forward algorithm ////////////////////////
-        //Step 1: Init at t=0
-        t = 0;
-        hmm.c[t] = 0.0;
-        for (i = 0; i < N; i++) {
-            double val = hmm.alpha.get(t, i);
-            val = pi[i] * b.get(i, obs[t]);
-            hmm.alpha.set(val, t, i);
-            hmm.c[t] += val;
+        if (T == 0) {
+            System.err.println("viterbi(int[] obs) - The observation sequence is empty!");
+            return false;
         }
 
-        //Set the inital scaling coeff
-        hmm.c[t] = 1.0 / hmm.c[t];
+        LogModel logModel = this.logModel;
+        if (logModel == null) {
+            logModel = new LogModel(this);
+            this.logModel = logModel;
+        }
 
-        //Scale alpha
+        //The backpointers are kept for one segment at a time, by default the segment is the whole sequence
+        final int L = workspace.segmentLength > 0 ? workspace.segmentLength : Math.max(1, T - 1);
+        final int numSegments = T > 1 ? (T - 2) / L + 1 : 0;
+        final int lastStart = (numSegments - 1) * L;
+        workspace.resize(T, N, L, numSegments);
+        final int[] path = workspace.path;
+        final int[] psi = workspace.psi;
+        final double[] checkpoints = workspace.checkpoints;
+        double[] delta = workspace.delta;
+        double[] next = workspace.nextDelta;
+
+        //Init at t=0
+        final int bRow = obs[0] * N;
         for (i = 0; i < N; i++) {
-            double val = hmm.alpha.get(t, i);
-            val *= hmm.c[t];
-            hmm.alpha.set(val, t, i);
+            delta[i] = logModel.pi[i] + logModel.bT[bRow + i];
         }
 
-        //Step 2: Induction
+        //Induction, keeping a checkpoint at the start of each segment and the backpointers of the last one
         for (t = 1; t < T; t++) {
-            hmm.c[t] = 0.0;
-            for (j = 0; j < N; j++) {
-                hmm.alpha.set(0.0, t, j);
-                for (i = 0; i < N; i++) {
-                    double val = hmm.alpha.get(t, j);
-                    val += hmm.alpha.get(t - 1, i) * a.get(i, j);
-                    hmm.alpha.set(val, t, j);
+            if ((t - 1) % L == 0) {
+                System.arraycopy(delta, 0, checkpoints, (t - 1) / L * N, N);
+            }
+            viterbiStep(logModel, delta, next, obs[t], t - 1 >= lastStart ? psi : null, (t - 1 - lastStart) * N);
+            double[] temp = delta;
+            delta = next;
+            next = temp;
+        }
+
+        //Termination
+        double logScore = Double.NEGATIVE_INFINITY;
+        int bestState = 0;
+        for (i = 0; i < N; i++) {
+            if (delta[i] > logScore) {
+                logScore = delta[i];
+                bestState = i;
+            }
+        }
+        path[T - 1] = bestState;
+
+        //Backtrack one segment at a time, recomputing the backpointers of every segment but the last
+        for (seg = numSegments - 1; seg >= 0; seg--) {
+            final int start = seg * L;
+            final int end = Math.min(start + L, T - 1);
+            if (seg != numSegments - 1) {
+                System.arraycopy(checkpoints, seg * N, delta, 0, N);
+                for (t = start + 1; t <= end; t++) {
+                    viterbiStep(logModel, delta, next, obs[t], psi, (t - 1 - start) * N);
+                    double[] temp = delta;
+                    delta = next;
+                    next = temp;
                 }
-                double val = hmm.alpha.get(t, j);
-                val *= b.get(j, obs[t]);
-                hmm.alpha.set(val, t, j);
-                hmm.c[t] += val;
             }
+            for (t = end; t > start; t--) {
+                path[t - 1] = psi[(t - 1 - start) * N + path[t]];
+            }
+        }
 
-            //Set the scaling coeff
-            hmm.c[t] = 1.0 / hmm.c[t];
+        workspace.pathLength = T;
+        workspace.logScore = logScore;
+        return true;
+    }
 
-            //Scale Alpha
-            for (j = 0; j < N; j++) {
-                double val = hmm.alpha.get(t, j);
-                val *= hmm.c[t];
-                hmm.alpha.set(val, t, j);
+    /**
+     * Advances the Viterbi scores by one time step. If psi is not null the
+     * backpointers are written to psi starting at psiOffset.
+     */
+    private void viterbiStep(LogModel logModel, double[] delta, double[] next, int symbol, int[] psi, int psiOffset) {
+        final int N = numStates;
+        final double[] aT = logModel.aT;
+        final int lowerBand = logModel.lowerBand;
+        final int upperBand = logModel.upperBand;
+        final int bRow = symbol * N;
+        int i, j;
+
+        for (j = 0; j < N; j++) {
+            final int aRow = j * N;
+            final int iStart = j > upperBand ? j - upperBand : 0;
+            final int iEnd = Math.min(N - 1, j + lowerBand);
+            double maxValue = Double.NEGATIVE_INFINITY;
+            int maxIndex = iStart;
+            for (i = iStart; i <= iEnd; i++) {
+                double val = delta[i] + aT[aRow + i];
+                if (val > maxValue) {
+                    maxValue = val;
+                    maxIndex = i;
+                }
+            }
+            next[j] = maxValue + logModel.bT[bRow + j];
+            if (psi != null) {
+                psi[psiOffset + j] = maxIndex;
             }
         }
+    }
+
+    boolean forwardBackward(HMMTrainingObject hmm, int[] obs) {
+        final int T = obs.length;
+        int t;
+
+        ////////////////// Run the forward algorithm ////////////////////////
+        forward(hmm, obs);
 
         //Termination
         hmm.pk = 0.0;
@@ -589,59 +806,179 @@ public class HiddenMarkovModel implements Serializable{
         }
 
         ////////////////// Run the backward algorithm ////////////////////////
-        //Step 1: Init at time t=T (T-1 as everything is zero based)
-        t = T - 1;
+        backward(hmm, obs);
+
+        return true;
+    }
+
+    /**
+     * Copies a and b into the flat, row-major buffers used by the forward and
+     * backward kernels. This must be called whenever a or b have changed.
+     *
+     * It also finds the band of a that holds every non-zero transition. The
+     * kernels only visit that band, so a LEFTRIGHT model costs O(N*delta) per
+     * time step instead of O(N*N). Only exact zeros fall outside the band, so
+     * skipping them does not change any result, and an ERGODIC model simply
+     * gets the full band.
+     */
+    void updateFlatModel() {
+        final int N = numStates;
+        final int M = numSymbols;
+        if (flatA == null || flatA.length != N * N) {
+            flatA = new double[N * N];
+            flatAT = new double[N * N];
+        }
+        if (flatBT == null || flatBT.length != N * M) {
+            flatBT = new double[N * M];
+        }
+        lowerBand = 0;
+        upperBand = 0;
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                double val = a.get(i, j);
+                flatA[i * N + j] = val;
+                flatAT[j * N + i] = val;
+                if (val != 0) {
+                    lowerBand = Math.max(lowerBand, i - j);
+                    upperBand = Math.max(upperBand, j - i);
+                }
+            }
+            for (int k = 0; k < M; k++) {
+                flatBT[k * N + i] = b.get(i, k);
+            }
+        }
+    }
+
+    /**
+     * Runs the scaled forward algorithm over obs, filling hmm.alpha and hmm.c.
+     * The workspace must already be sized for obs.
+     */
+    private void forward(HMMTrainingObject hmm, int[] obs) {
+        final int N = numStates;
+        final int T = obs.length;
+        final double[] alpha = hmm.alpha;
+        final double[] c = hmm.c;
+
+        //Step 1: Init at t=0
+        c[0] = forwardInit(alpha, 0, obs[0]);
+
+        //Step 2: Induction
+        for (int t = 1; t < T; t++) {
+            c[t] = forwardStep(alpha, (t - 1) * N, alpha, t * N, obs[t]);
+        }
+    }
+
+    /**
+     * Computes the scaled forward vector for the first observation of a
+     * sequence. The flat model must be up to date.
+     *
+     * @param alpha: the buffer the N values are written to
+     * @param offset: the position of the vector in alpha
+     * @param symbol: the first observation
+     * @return the scaling coefficient, i.e. 1 / P(symbol | Model)
+     */
+    private double forwardInit(double[] alpha, int offset, int symbol) {
+        final int N = numStates;
+        final int bRow = symbol * N;
+        int i;
+
+        double sum = 0.0;
         for (i = 0; i < N; i++) {
-            hmm.beta.set(1.0, t, i);
+            double val = pi[i] * flatBT[bRow + i];
+            alpha[offset + i] = val;
+            sum += val;
+        }
+
+        //Set the inital scaling coeff
+        final double scale = 1.0 / sum;
+
+        //Scale alpha
+        for (i = 0; i < N; i++) {
+            alpha[offset + i] *= scale;
+        }
+        return scale;
+    }
+
+    /**
+     * Advances a scaled forward vector by one observation. The flat model must
+     * be up to date.
+     *
+     * @param prev: the buffer holding the forward vector of the previous step
+     * @param prevOffset: the position of that vector in prev
+     * @param alpha: the buffer the new N values are written to
+     * @param offset: the position of the new vector in alpha
+     * @param symbol: the new observation
+     * @return the scaling coefficient of this step
+     */
+    private double forwardStep(double[] prev, int prevOffset, double[] alpha, int offset, int symbol) {
+        final int N = numStates;
+        final double[] aT = flatAT;
+        final int bRow = symbol * N;
+        int i, j;
+
+        double sum = 0.0;
+        for (j = 0; j < N; j++) {
+            final int aRow = j * N;
+            final int iEnd = Math.min(N - 1, j + lowerBand);
+            double val = 0.0;
+            for (i = j > upperBand ? j - upperBand : 0; i <= iEnd; i++) {
+                val += prev[prevOffset + i] * aT[aRow + i];
+            }
+            val *= flatBT[bRow + j];
+            alpha[offset + j] = val;
+            sum += val;
+        }
+
+        //Set the scaling coeff
+        final double scale = 1.0 / sum;
+
+        //Scale Alpha
+        for (j = 0; j < N; j++) {
+            alpha[offset + j] *= scale;
         }
+        return scale;
+    }
 
+    /**
+     * Runs the scaled backward algorithm over obs, filling hmm.beta using the
+     * scaling coefficients computed by forward.
+     */
+    private void backward(HMMTrainingObject hmm, int[] obs) {
+        final int N = numStates;
+        final int T = obs.length;
+        final double[] beta = hmm.beta;
+        final double[] c = hmm.c;
+        final double[] aFlat = flatA;
+        final double[] bT = flatBT;
+        int t, i, j;
+
+        //Step 1: Init at time t=T (T-1 as everything is zero based)
         //Scale beta, using the same coeff as A
+        t = T - 1;
+        int row = t * N;
         for (i = 0; i < N; i++) {
-            double val = hmm.beta.get(t, i);
-            val *= hmm.c[t];
-            hmm.beta.set(val, t, i);
+            beta[row + i] = 1.0 * c[t];
         }
 
         //Step 2: Induction, from T-1 until 1 (T-2 until 0 as everything is zero based)
         for (t = T - 2; t >= 0; t--) {
+            row = t * N;
+            final int next = row + N;
+            final int bRow = obs[t] * N;
+            final double scale = c[t];
             for (i = 0; i < N; i++) {
                 //Calculate the backward step for t, using the scaled beta
-                hmm.beta.set(0.0, t, i);
-                for (j = 0; j < N; j++) {
-                    double val = hmm.beta.get(t, i);
-                    val += a.get(i, j) * b.get(j, obs[t]) * hmm.beta.get(t + 1, j);
-                    hmm.beta.set(val, t, i);
+                final int aRow = i * N;
+                final int jEnd = Math.min(N - 1, i + upperBand);
+                double val = 0.0;
+                for (j = i > lowerBand ? i - lowerBand : 0; j <= jEnd; j++) {
+                    val += aFlat[aRow + j] * bT[bRow + j] * beta[next + j];
                 }
 
                 //Scale B using the same coeff as A
-                double val = hmm.beta.get(t, i);
-                val *= hmm.c[t];
-                hmm.beta.set(val, t, i);
-            }
-        }
-//        /* DEBUG! */
-//        System.out.print("End state: \n");
-//        System.out.print("alpha: \n");
-//        hmm.alpha.print();
-//        System.out.print("beta: \n");
-//        hmm.beta.print();
-//        System.out.print("c: \n");
-//        for (int z = 0; z < hmm.c.length; z++) {
-//            System.out.print(hmm.c[z] + "\t");
-//        }
-//        System.out.print("\npk: " + hmm.pk);
-//        System.out.print("obs: \n");
-//        for (int z = 0; z < obs.length; z++) {
-//            System.out.print(obs[z] + "\t");
-//        }
-//        try {
-//            Thread.sleep(2000);
-//        } catch (InterruptedException ex) {
-//            Logger.getLogger(HiddenMarkovModel.class.getName()).log(Level.SEVERE, null, ex);
-//        }
-
-        return true;
-
+                beta[row + i] = val * scale;
+            }
+        }
     }
 
     private void printMatrices() {
@@ -691,4 +1028,44 @@ public class HiddenMarkovModel implements Serializable{
             }
         }
     }
+
+    /**
+     * The log of a, b and pi used by viterbi. It is built from the model once
+     * and never modified, so any number of threads can decode with it. It is
+     * dropped whenever the model is reset or retrained.
+     */
+    private static final class LogModel {
+
+        final double[] aT;      //Transposed log of a, aT[j*N+i] = log(a(i,j))
+        final double[] bT;      //Transposed log of b, bT[k*N+i] = log(b(i,k))
+        final double[] pi;      //Log of pi
+        final int lowerBand;    //a(i,j) is zero for i-j > lowerBand
+        final int upperBand;    //a(i,j) is zero for j-i > upperBand
+
+        LogModel(HiddenMarkovModel model) {
+            final int N = model.numStates;
+            final int M = model.numSymbols;
+            int lower = 0;
+            int upper = 0;
+            aT = new double[N * N];
+            bT = new double[N * M];
+            pi = new double[N];
+            for (int i = 0; i < N; i++) {
+                for (int j = 0; j < N; j++) {
+                    double val = model.a.get(i, j);
+                    aT[j * N + i] = Math.log(val);
+                    if (val != 0) {
+                        lower = Math.max(lower, i - j);
+                        upper = Math.max(upper, j - i);
+                    }
+                }
+                for (int k = 0; k < M; k++) {
+                    bT[k * N + i] = Math.log(model.b.get(i, k));
+                }
+                pi[i] = Math.log(model.pi[i]);
+            }
+            lowerBand = lower;
+            upperBand = upper;
+        }
+    }
 }
@@ -5,18 +5,16 @@
  */
 package hmmMain;
 
-import DataStructures.TimeSeriesClassificationData;
+import DataStructures.QuantizedSequenceData;
 import java.io.IOException;
 import KMeans.KMeansQuantizer;
-import Util.MatrixDouble;
+import KMeans.QuantizedDataCache;
 import hmm.HMM;
+import hmm.HMMModelBundle;
+import hmm.HMMPrediction;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 //import hmm.HMM;
 //import Util.MatrixDouble;
 
@@ -45,15 +43,8 @@ public class Main {
 
         //trainingData.printStats();
         //Remove 20% of the training data to use as test data
-        TimeSeriesClassificationData testData = new TimeSeriesClassificationData();//=  trainingData.partition( 80 );
-        try {
-            if (!testData.loadDatasetFromFile("HMMTrainingDataACC1.txt")) {
-                System.err.println("ERROR: Failed to load test data!");
-                return;
-            }
-        } catch (IOException ex) {
-            System.err.println("ERROR: Failed to load training data!");
-        }
+        //TimeSeriesClassificationData testData = trainingData.partition( 80 );
+        //The test data is loaded and quantized below, through the quantized data cache
         //The input to the HMM must be a quantized discrete value
         //We therefore use a KMeansQuantizer to covert the N-dimensional continuous data into 1-dimensional discrete data
         final int NUM_SYMBOLS = 20;    // 10 - default
@@ -140,47 +131,54 @@ public class Main {
 //            return;
 //        }
 //
-        //Load the HMM model from a file
-        try {
-            System.out.println("In try");
-            hmm.loadModelFromFile("HMMModel.txt");
-        } catch (IOException e) {
-            System.err.println("ERROR: Failed to load the model from a file! " + e);
-            return;
+        //Only rebuild the bundle of the quantizer and the HMM models if it is missing or older than them,
+        //otherwise the test data is scored straight from the existing bundle
+        File bundleFile = new File("HMMModel.bundle");
+        if (bundleFile.lastModified() < Math.max(new File("HMMModel.txt").lastModified(), new File("HMMQuantizer.ser").lastModified())) {
+            //Load the HMM model from a file
+            try {
+                System.out.println("In try");
+                hmm.loadModelFromFile("HMMModel.txt");
+            } catch (IOException e) {
+                System.err.println("ERROR: Failed to load the model from a file! " + e);
+                return;
+            }
+
+            try {
+                if (!HMMModelBundle.save(bundleFile.getPath(), quantizer, hmm)) {
+                    System.err.println("ERROR: Failed to save the model bundle!");
+                    return;
+                }
+            } catch (IOException ex) {
+                System.err.println("ERROR: Failed to save the model bundle! " + ex);
+                return;
+            }
         }
 
-        /* TEST! */
+        HMMModelBundle bundle;
         try {
-            ObjectOutputStream os = new ObjectOutputStream(new FileOutputStream("HMMModel.ser"));
-            os.writeObject(hmm);
-        } catch (Exception ex) {
-            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+            bundle = HMMModelBundle.open(bundleFile.getPath());
+        } catch (IOException ex) {
+            System.err.println("ERROR: Failed to open the model bundle! " + ex);
+            return;
         }
-        try {
-            ObjectInputStream is = new ObjectInputStream(new FileInputStream("HMMModel.ser"));
-            hmm = (HMM)is.readObject();
-        } catch (Exception ex) {
-            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+        if (bundle == null) {
+            System.err.println("ERROR: Failed to open the model bundle!");
+            return;
         }
-            
-        
-        //Quantize the test data
-        TimeSeriesClassificationData quantizedTestData = new TimeSeriesClassificationData(1);
-
-        for (int i = 0; i < testData.getNumSamples(); i++) {
-
-            int classLabel = testData.get(i).getClassLabel();
-            MatrixDouble quantizedSample = new MatrixDouble();
 
-            for (int j = 0; j < testData.get(i).getLength(); j++) {
-                quantizer.quantize(testData.get(i).getData().getRowVector(j));
-                quantizedSample.push_back(quantizer.getFeatureVector());
-            }
-
-            if (!quantizedTestData.addSample(classLabel, quantizedSample)) {
-                System.out.println("ERROR: Failed to quantize training data!");
-                return;
-            }
+        //Quantize the test data, or load it from the cache if this file was already quantized with these clusters
+        QuantizedDataCache cache = new QuantizedDataCache("QuantizedDataCache");
+        QuantizedSequenceData quantizedTestData;
+        try {
+            quantizedTestData = cache.getQuantizedData(quantizer, "HMMTrainingDataACC1.txt", Runtime.getRuntime().availableProcessors());
+        } catch (IOException ex) {
+            System.err.println("ERROR: Failed to load test data! " + ex);
+            return;
+        }
+        if (quantizedTestData == null) {
+            System.out.println("ERROR: Failed to quantize test data!");
+            return;
         }
 
         //Compute the accuracy of the HMM models using the test data
@@ -188,19 +186,22 @@ public class Main {
         double numTests = 0;
         for (int i = 0; i < quantizedTestData.getNumSamples(); i++) {
 
-            int classLabel = quantizedTestData.get(i).getClassLabel();
-            hmm.predict(quantizedTestData.get(i).getData());
+            int classLabel = quantizedTestData.getClassLabel(i);
+            HMMPrediction prediction = bundle.classify(quantizedTestData, i);
+            numTests++;
+            if (prediction == null) {
+                continue;
+            }
 
-            if (classLabel == hmm.getPredictedClassLabel()) {
+            if (classLabel == prediction.getPredictedClassLabel()) {
                 numCorrect++;
             }
-            numTests++;
 
-            double[] classLikelihoods = hmm.getClassLikelihoods();
-            double[] classDistances = hmm.getClassDistances();
+            double[] classLikelihoods = prediction.getClassLikelihoods();
+            double[] classDistances = prediction.getClassDistances();
             System.out.println("ClassLabel: " + classLabel);
-            System.out.println(" PredictedClassLabel: " + hmm.getPredictedClassLabel());
-            System.out.println(" MaxLikelihood: " + hmm.getMaximumLikelihood());
+            System.out.println(" PredictedClassLabel: " + prediction.getPredictedClassLabel());
+            System.out.println(" MaxLikelihood: " + prediction.getMaximumLikelihood());
             System.out.println("  ClassLikelihoods: ");
             for (int k = 0; k < classLikelihoods.length; k++) {
                 System.out.println(classLikelihoods[k]);// "\t";